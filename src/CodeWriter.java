@@ -1,18 +1,150 @@
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
 /**
  * This class handles writing the ASM language to a file, from the type of VM command provided.
+ *
+ * The ASM code is built in a byte buffer from pre-encoded templates, numbers are written as digits straight into
+ * the buffer and symbols (labels, function and file names) are encoded once and reused, so translating does not
+ * create any garbage once every symbol has been seen. The buffer is only written to the output when it fills up,
+ * on flush() and on close().
+ *
  * @author Mark Vincent II
  * @version 2.0
  */
 public class CodeWriter {
 
+    // Size of the output buffer.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Most encoded symbols kept by reset, past this they are encoded again.
+    private static final int MAX_KEPT_SYMBOLS = 64 * 1024;
+
+    // Fixed ASM sequences, encoded once.
+    private static final byte[] PUSH = ascii("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");   // push D onto the stack
+    private static final byte[] POP = ascii("@SP\n" + "AM=M-1\n" + "D=M\n");               // pop the stack into D
+    private static final byte[] PUSH_ZERO = ascii("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=0\n");
+    private static final byte[] PUSH_TRUE = ascii("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=-1\n");
+    private static final byte[] INIT = ascii("@256\n" + "D=A\n" + "@SP\n" + "M=D\n");
+    private static final byte[] FUNCTION_LCL = ascii("@SP\n" + "D=M\n" + "@LCL\n" + "M=D\n");
+    private static final byte[] CALL_ARGS = ascii("D=A\n" + "@SP\n" + "A=M\n" + "A=A-D\n" + "D=A\n" + "@15\n" + "M=D\n");
+    private static final byte[] CALL_NO_ARGS = ascii("@SP\n" + "D=M\n" + "@15\n" + "M=D\n");
+    private static final byte[] CALL_FRAME = ascii("D=A\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@LCL\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@ARG\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@THIS\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@THAT\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@15\n" + "D=M\n" + "@ARG\n" + "M=D\n");
+    private static final byte[] RETURN = ascii(
+            "@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n" + "@14\n" + "M=D\n"
+            + "@SP\n" + "AM=M-1\n" + "D=M\n" + "@ARG\n" + "A=M\n" + "M=D\n"
+            + "@ARG\n" + "D=M+1\n" + "@SP\n" + "M=D\n"
+            + "@LCL\n" + "A=M\n" + "A=A-1\n" + "D=M\n" + "@THAT\n" + "M=D\n"
+            + "@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n" + "@THIS\n" + "M=D\n"
+            + "@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n" + "@ARG\n" + "M=D\n"
+            + "@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n" + "@LCL\n" + "M=D\n"
+            + "@14\n" + "A=M\n" + "0;JMP\n");
+    private static final byte[] ADD = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "@SP\n" + "AM=M-1\n" + "D=M+D\n"
+            + "M=D\n" + "@SP\n" + "M=M+1\n");
+    private static final byte[] SUB = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "@SP\n" + "AM=M-1\n" + "D=M-D\n"
+            + "M=D\n" + "@SP\n" + "M=M+1\n");
+    private static final byte[] NEG = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "D=-D\n"
+            + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");
+    private static final byte[] AND = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "@SP\n" + "AM=M-1\n" + "D=D&M\n"
+            + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");
+    private static final byte[] OR = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "@SP\n" + "AM=M-1\n" + "D=D|M\n"
+            + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");
+    private static final byte[] NOT = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "D=!D\n"
+            + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");
+    private static final byte[] COMPARE = ascii("@SP\n" + "AM=M-1\n" + "D=M\n" + "@SP\n" + "AM=M-1\n" + "D=M-D\n");
+    // gt and lt: pops y and x, leaves D with the sign of x - y. x - y can only overflow when x and y have different
+    // signs, so it is computed straight away when x | y >= 0 and otherwise after MIXED_SIGNS has checked x & y < 0.
+    // With different signs D is x (x < 0 <= y) or 1 (y < 0 <= x). Pieces go around the label number.
+    private static final String[] SIGNED_COMPARE = {"@SP\n" + "AM=M-1\n" + "D=M\n" + "A=A-1\n" + "D=D|M\n" + "@MIXED.",
+            "\n" + "D;JLT\n" + "(SAME.",
+            ")\n" + "@SP\n" + "AM=M-1\n" + "D=M\n" + "A=A+1\n" + "D=D-M\n" + "(SIGN.",
+            ")\n"};
+    // The rest of gt and lt, out of the common path after its jump to ENDCOMP: at least one of x and y is negative.
+    private static final String[] MIXED_SIGNS = {"(MIXED.",
+            ")\n" + "@SP\n" + "A=M\n" + "D=M\n" + "A=A-1\n" + "D=D&M\n" + "@SAME.",
+            "\n" + "D;JLT\n" + "@SP\n" + "AM=M-1\n" + "D=M\n" + "@SIGN.",
+            "\n" + "D;JLT\n" + "D=1\n" + "@SIGN.",
+            "\n" + "0;JMP\n"};
+    private static final byte[][] SIGNED_COMPARE_PIECES = pieces(SIGNED_COMPARE);
+    private static final byte[][] MIXED_SIGNS_PIECES = pieces(MIXED_SIGNS);
+    private static final byte[] JEQ = ascii("\n" + "D;JEQ\n");
+    private static final byte[] JGT = ascii("\n" + "D;JGT\n");
+    private static final byte[] JLT = ascii("\n" + "D;JLT\n");
+    private static final byte[] JNE = ascii("\n" + "D;JNE\n");
+    private static final byte[] JMP = ascii("\n" + "0;JMP\n");
+    private static final byte[] END_LOOP = ascii("(END.ALL.LOOP)\n" + "@END.ALL.LOOP\n" + "0;JMP\n");
+
+    // Shared subroutines of an OptimizationPlan, and the code jumping into them.
+    // $CALL takes the function address in temp14, the argument offset in temp13 and the return address in D.
+    // $EQ, $GT, $LT take the return address in temp13.
+    private static final byte[] SHARED_CALL = ascii("($CALL)\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@LCL\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@ARG\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@THIS\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@THAT\n" + "D=M\n" + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"
+            + "@SP\n" + "D=M\n" + "@13\n" + "D=D-M\n" + "@5\n" + "D=D-A\n" + "@ARG\n" + "M=D\n"
+            + "@14\n" + "A=M\n" + "0;JMP\n");
+    private static final byte[] SHARED_RETURN = ascii("($RETURN)\n");
+    private static final byte[] TO_SHARED_RETURN = ascii("@$RETURN\n" + "0;JMP\n");
+    private static final byte[] TO_SHARED_CALL = ascii("D=A\n" + "@$CALL\n" + "0;JMP\n");
+    private static final byte[] D_TO_TEMP13 = ascii("\n" + "D=A\n" + "@13\n" + "M=D\n");
+    private static final byte[] D_TO_TEMP14 = ascii("\n" + "D=A\n" + "@14\n" + "M=D\n");
+    private static final byte[] TO_SHARED_EQ = ascii("@$EQ\n" + "0;JMP\n");
+    private static final byte[] TO_SHARED_GT = ascii("@$GT\n" + "0;JMP\n");
+    private static final byte[] TO_SHARED_LT = ascii("@$LT\n" + "0;JMP\n");
+    private static final byte[] SHARED_EQ = sharedComparison("$EQ", "JEQ");
+    private static final byte[] SHARED_GT = sharedComparison("$GT", "JGT");
+    private static final byte[] SHARED_LT = sharedComparison("$LT", "JLT");
+    private static final byte[] INDEXED = ascii("D=M\n" + "@");
+    private static final byte[] A_EQUALS_D_PLUS_A = ascii("\n" + "A=D+A\n");
+
+    // Pieces of lines.
+    private static final byte[] AT = ascii("@");
+    private static final byte[] OPEN = ascii("(");
+    private static final byte[] CLOSE = ascii(")\n");
+    private static final byte[] DOT = ascii(".");
+    private static final byte[] NEWLINE = ascii("\n");
+    private static final byte[] NEWLINE_D_EQUALS_A = ascii("\n" + "D=A\n");
+    private static final byte[] TRUE = ascii("TRUE.");
+    private static final byte[] ENDCOMP = ascii("ENDCOMP.");
+    private static final byte[] RETURN_ADDRESS = ascii("RETURN_ADDRESS_");
+    private static final byte[] CALL_COMMENT = ascii("// call ");
+    private static final byte[] WITH = ascii(" with ");
+
+    // Segment pointers and their last access line.
+    private static final byte[] AT_ARG = ascii("@ARG\n");
+    private static final byte[] AT_LCL = ascii("@LCL\n");
+    private static final byte[] AT_THIS = ascii("@THIS\n");
+    private static final byte[] AT_THAT = ascii("@THAT\n");
+    private static final byte[] AT_TEMP = ascii("@5\n");
+    private static final byte[] D_EQUALS_M = ascii("D=M\n");
+    private static final byte[] M_EQUALS_D = ascii("M=D\n");
+    private static final byte[] A_EQUALS_M = ascii("A=M\n");
+    private static final byte[] A_EQUALS_M_PLUS_ONE = ascii("A=M+1\n");
+    private static final byte[] A_EQUALS_A_PLUS_ONE = ascii("A=A+1\n");
+
     // private variables and objects
-    private PrintWriter outputFile;
+    private OutputStream outputFile;
+    private byte[] buffer;
+    private int position;
     private String fileName;
+    private byte[] fileNameBytes;
+    private HashMap<String, byte[]> symbols;
     private int numLabels;
+    private StaticAllocation statics;
+    private OptimizationPlan plan;
+    private int site;
+
     /**
      * Handles the creation and initialization of a new CodeWriter object.
      * @param fileName the file you want to write to. (will create a new file if need be)
@@ -20,14 +152,35 @@ public class CodeWriter {
     public CodeWriter(String fileName){
         // Sets up outputFile to open a stream to the fileName argument.
         try {
-            this.outputFile = new PrintWriter(new File("src/" + fileName));
+            this.outputFile = new FileOutputStream(VMTranslator.locate(fileName));
         } catch (FileNotFoundException e) {
             System.out.println("I was unable to create " + fileName + ", exiting program.");
             System.exit(0);
         }
 
-        this.fileName = fileName;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.position = 0;
+        this.symbols = new HashMap<>();
+        this.numLabels = 0;
+        setFileName(fileName);
+    }
+
+    /**
+     * Handles the creation of a CodeWriter object that writes into an already open stream instead of a file.
+     *
+     * pre: pass an open outputStream, the stream is closed along with this object.
+     * post: ASM code is written to the stream, static variables are named after fileName.
+     *
+     * @param output the stream to write the ASM code into.
+     * @param fileName the name used for the static variables of the VM file.
+     */
+    public CodeWriter(OutputStream output, String fileName) {
+        this.outputFile = output;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.position = 0;
+        this.symbols = new HashMap<>();
         this.numLabels = 0;
+        setFileName(fileName);
     }
 
 
@@ -40,7 +193,97 @@ public class CodeWriter {
      * @param name the name of the new VM file.
      */
     public void setFileName(String name) {
+        // sites of an OptimizationPlan are numbered inside each VM file.
+        if (!name.equals(fileName)) {
+            site = 0;
+        }
         fileName = name;
+        fileNameBytes = symbol(name);
+    }
+
+    /**
+     * pre: Have a valid value for fileName.
+     * post: returns the name currently used for static variables.
+     * @return the fileName variable.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Makes static variables use the fixed addresses of a whole-program allocation, instead of symbols.
+     *
+     * pre: every VM file translated with this writer was part of the allocated program.
+     * post: static variables are written as @address.
+     *
+     * @param statics the allocation, or null to go back to @fileName.index symbols.
+     */
+    public void setStaticAllocation(StaticAllocation statics) {
+        this.statics = statics;
+    }
+
+    /**
+     * pre: none.
+     * post: returns the allocation of static variables, null if they are written as symbols.
+     * @return the statics variable.
+     */
+    public StaticAllocation getStaticAllocation() {
+        return statics;
+    }
+
+    /**
+     * Makes calls, returns and comparisons follow an OptimizationPlan, inline or through a shared subroutine.
+     *
+     * pre: every VM file translated with this writer was part of the planned program.
+     * post: sites are written the way the plan says, writeSharedRoutines must be called once at the end.
+     *
+     * @param plan the plan, or null to write every site inline.
+     */
+    public void setOptimizationPlan(OptimizationPlan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * pre: none.
+     * post: returns the plan sites follow, null if every site is inline.
+     * @return the plan variable.
+     */
+    public OptimizationPlan getOptimizationPlan() {
+        return plan;
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many unique labels (RETURN_ADDRESS_n, TRUE.n, ENDCOMP.n, and MIXED.n, SAME.n, SIGN.n of gt
+     *       and lt) have been used so far.
+     * @return the numLabels variable.
+     */
+    public int getNumLabels() {
+        return numLabels;
+    }
+
+    /**
+     * Moves the unique label counter forward, used after ASM with its own numbered labels was spliced in.
+     *
+     * pre: count is the number of unique labels the spliced ASM code used.
+     * post: the next generated label will not clash with the spliced ASM code.
+     *
+     * @param count the number of labels to skip.
+     */
+    public void skipLabels(int count) {
+        numLabels += count;
+    }
+
+    /**
+     * Writes already translated ASM code as is.
+     *
+     * pre: asm is complete lines of ASM code, each ending in a newline.
+     * post: writes the ASM code into the output stream.
+     *
+     * @param asm the ASM code to write.
+     */
+    public void writeRaw(String asm) {
+        write(asm.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -50,10 +293,8 @@ public class CodeWriter {
      * post: Writes the initial ASM code for VM programs.
      */
     public void writeInit() {
-        // outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-        outputFile.write("@256\n" + "D=A\n" + "@SP\n" + "M=D\n"); // Does SP = 256.
+        write(INIT); // Does SP = 256.
         // call Sys.init
-        outputFile.flush();
     }
 
     /**
@@ -66,13 +307,11 @@ public class CodeWriter {
      * @param numVars the number of local variables the function has.
      */
     public void writeFunction(String functionName, int numVars) {
-        outputFile.write("(" + fileName + "." + functionName + ")\n"); // writes the label.
-        outputFile.write("@SP\n" + "D=M\n" + "@LCL\n" + "M=D\n"); // sets up the new LCL pointer.
-        outputFile.flush();
+        writeLabelLine(symbol(functionName)); // writes the label. (VM function names are already unique)
+        write(FUNCTION_LCL); // sets up the new LCL pointer.
         // initializes the local variables to 0.
         for (int i = 0; i < numVars; i++) {
-            outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=0\n"); // push operation
-            outputFile.flush();
+            write(PUSH_ZERO); // push operation
         }
 
     }
@@ -87,50 +326,47 @@ public class CodeWriter {
      * @param numArgs the number of arguments to give to the function.
      */
     public void writeCall(String functionName, int numArgs) {
+        byte[] function = symbol(functionName);
+
+        if (isShared()) {
+            writeSharedCall(function, numArgs);
+            return;
+        }
 
-//        // stores the arg value in temp15
+        // stores the arg value in temp15
         if (numArgs != 0) {
-            outputFile.write("@" + numArgs + "\n" + "D=A\n"); //stores numArgs in D
-            outputFile.write("@SP\n" + "A=M\n" + "A=A-D\n" + "D=A\n");
-            outputFile.write("@15\n" + "M=D\n"); //stores @SP - numArgs in D
+            write(AT);
+            writeNumber(numArgs);
+            write(NEWLINE);
+            write(CALL_ARGS); // stores @SP - numArgs in temp15
         } else {
             // stores current SP into temp15, will later be used as the pointer for ARG
-            outputFile.write("@SP\n" + "D=M-1\n" + "@15\n" + "M=D\n");
+            write(CALL_NO_ARGS);
         }
 
         // writes in a comment.
-        outputFile.write("// call " + functionName + " with " + numArgs + "\n");
-
-        // begins storing segments. returnAdd -> LCL -> ARG -> THIS -> THAT
-        outputFile.write("@RETURN_ADDRESS_" + numLabels + "\n" + "D=A\n"); // gets returnAdd into D
-        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");      // push operation
-        outputFile.flush();
-
-        outputFile.write("@LCL\n" + "D=M\n");                                // gets LCL pointer into D
-        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");        // push operation
-        outputFile.flush();
-
-        outputFile.write("@ARG\n" + "D=M\n");                               // gets ARG pointer into D
-        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");       // push operation
-        outputFile.flush();
-
-        outputFile.write("@THIS\n" + "D=M\n");                               // gets THIS pointer into D
-        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");        // push operation
-        outputFile.flush();
-
-        outputFile.write("@THAT\n" + "D=M\n");                               // gets THAT pointer into D
-        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n");        // push operation
-        outputFile.flush();
-
-
-        outputFile.write("@15\n" + "D=M\n" + "@ARG\n" + "M=D\n");           // sets ARG pointer to new ARG space.
+        write(CALL_COMMENT);
+        write(function);
+        write(WITH);
+        writeNumber(numArgs);
+        write(NEWLINE);
+
+        // begins storing segments. returnAdd -> LCL -> ARG -> THIS -> THAT, then sets ARG pointer to new ARG space.
+        write(AT);
+        write(RETURN_ADDRESS);
+        writeNumber(numLabels);
+        write(NEWLINE);
+        write(CALL_FRAME);
 
         // Writes the jump to the function, also writes the return address label.
         // also increments the numLabels to keep a unique list of labels.
-        outputFile.write("@" + fileName + "." + functionName + "\n");
-        outputFile.write("0;JMP\n");
-        outputFile.write("(" + "RETURN_ADDRESS_" + numLabels + ")\n");
-        outputFile.flush();
+        write(AT);
+        write(function);
+        write(JMP);
+        write(OPEN);
+        write(RETURN_ADDRESS);
+        writeNumber(numLabels);
+        write(CLOSE);
         numLabels++;
 
     }
@@ -141,43 +377,15 @@ public class CodeWriter {
      * post: returns outside of the function.
      */
     public void writeReturn() {
-        // copies returnValue into arg0
-        outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-        outputFile.write("@ARG\n"); // points to current ARG pointer
-        outputFile.write("A=M\n");  // sets address to ARG pointer value.
-        outputFile.write("M=D\n");  // Stores contents of D into RAM[ARG]
-        outputFile.flush();
-
-        // gets caller's SP location and stores in temp15.
-        outputFile.write("@ARG\n" + "A=M\n" + "A=A+1\n" + "D=A\n"); // points to ARG1, stores ARG1* in D.
-        outputFile.write("@15\n" + "M=D\n"); // points to temp15, stores D in temp15.
-        outputFile.flush();
-
-        // stores the return address into temp14, and caller SP into temp14.
-        // gets return address ([LCL* - 5]) into D, then stores on temp14
-        outputFile.write("@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n");
-        outputFile.write("@14\n" + "M=D\n"); // points to temp14, stores D in temp14.
-
-        // points SP to temp0(@15).
-        outputFile.write("@15\n" + "D=M\n" + "@SP\n" + "M=D\n");
-
-        // restores the segment pointers. THAT[LCL* -1] -> THIS[LCL* -2] -> ARG[LCL* -3] -> LCL[LCL* - 4]
-        outputFile.write("@LCL\n" + "A=M\n" + "A=A-1\n" + "D=M\n"); // gets OG THAT into D
-        outputFile.write("@THAT\n" + "M=D\n"); // stores OG THAT* into THAT*
-
-        outputFile.write("@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n"); // gets OG THIS into D
-        outputFile.write("@THIS\n" + "M=D\n"); // stores OG THIS* into THIS*
-
-        outputFile.write("@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n"); // gets OG ARG into D
-        outputFile.write("@ARG\n" + "M=D\n"); // stores OG ARG* into ARG*
-
-        outputFile.write("@LCL\n" + "A=M\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "A=A-1\n" + "D=M\n"); // gets OG LCL into D
-        outputFile.write("@LCL\n" + "M=D\n"); // stores OG LCL* into LCL*
-        outputFile.flush();
+        if (isShared()) {
+            write(TO_SHARED_RETURN);
+            return;
+        }
 
-        // jumps to temp14 (@14), or the return address.
-        outputFile.write("@14\n" + "A=M\n" + "0;JMP\n");
-        outputFile.flush();
+        // stores the return address ([LCL* - 5]) in temp14 before arg0 can overwrite it (no arguments),
+        // copies returnValue into arg0, points SP after it, restores the segment pointers
+        // THAT[LCL* -1] -> THIS[LCL* -2] -> ARG[LCL* -3] -> LCL[LCL* - 4], then jumps to the return address.
+        write(RETURN);
     }
 
     /**
@@ -189,8 +397,7 @@ public class CodeWriter {
      * @param label the label to write.
      */
     public void writeLabel(String label) {
-        outputFile.write("(" + label + ")\n"); // writes (label) in ASM. non unique.
-        outputFile.flush();
+        writeLabelLine(symbol(label)); // writes (label) in ASM. non unique.
     }
 
 
@@ -203,9 +410,9 @@ public class CodeWriter {
      * @param label the label to jump to in ASM.
      */
     public void writeGoTo(String label) {
-        outputFile.write("@" + label + "\n"); // points to label.
-        outputFile.write("0;JMP\n"); // Jumps to label
-        outputFile.flush();
+        write(AT);
+        write(symbol(label)); // points to label.
+        write(JMP); // Jumps to label
     }
 
     /**
@@ -217,10 +424,10 @@ public class CodeWriter {
      * @param label the label to jump to.
      */
     public void writeIf(String label) {
-        outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on stack into D
-        outputFile.write("@" + label + "\n"); // points to label.
-        outputFile.write("D;JNE\n"); // Jumps if D != 0, else if D == 0 continues execution.
-        outputFile.flush();
+        write(POP);   // pop operation on stack into D
+        write(AT);
+        write(symbol(label)); // points to label.
+        write(JNE); // Jumps if D != 0, else if D == 0 continues execution.
     }
 
     /**
@@ -230,90 +437,43 @@ public class CodeWriter {
      * post: Will write the corresponding ASM code to perform the operation specified by the command.
      *
      * @param command the type of command to write.
+     * @throws IllegalArgumentException if the command isn't an arithmetic or logical command.
      */
     public void writeArithmetic(String command) {
         // handles each arithmetic & logical command to be performed on the stack.
         // add, sub, neg, eq, gt, lt, and, or, not
         switch (command) {
             case "add":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M+D\n"); // pop operation on x2 AND D = x1 + x2
-                outputFile.write("M=D\n"); // Saves operation on stack pointer's new address.
-                outputFile.write("@SP\n" + "M=M+1\n"); // after the push, increments the SP address again
-                outputFile.flush(); // writes
+                write(ADD); // pops x1 and x2, pushes x1 + x2
                 break;
             case "sub":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M-D\n"); // pop operation on x2 AND D = x1 - x2
-                outputFile.write("M=D\n"); // Saves operation on stack pointer's new address.
-                outputFile.write("@SP\n" + "M=M+1\n"); // after the push, increments the SP address again
-                outputFile.flush(); // writes
+                write(SUB); // pops x1 and x2, pushes x1 - x2
                 break;
             case "neg":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-                outputFile.write("D=-D\n"); // D = -D negative
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
+                write(NEG); // pops x1, pushes -x1
                 break;
             case "eq":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on y
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M-D\n"); // pop operation on x AND D = x - y
-                outputFile.write("@TRUE." + numLabels + "\n"  + "D;JEQ\n"); // X = Y
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=0\n"); // push operation for 0 (false)
-                outputFile.write("@ENDCOMP." + numLabels + "\n" + "0;JMP\n"); // Jumps to end
-                outputFile.write("(TRUE." + numLabels + ")\n"); // TRUE label with unique tag
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=-1\n"); // push operation for -1 (true)
-                outputFile.write("(ENDCOMP." + numLabels + ")\n");
-                outputFile.flush(); // writes
-                numLabels++;
+                writeComparison(false, JEQ, TO_SHARED_EQ); // X = Y
                 break;
             case "gt":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on y
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M-D\n"); // pop operation on x AND D = x - y
-                outputFile.write("@TRUE." + numLabels + "\n" + "D;JGT\n"); // X > Y
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=0\n"); // push operation for 0 (false)
-                outputFile.write("@ENDCOMP." + numLabels + "\n" + "0;JMP\n"); // Jumps to end
-                outputFile.write("(TRUE." + numLabels + ")\n"); // TRUE label with unique tag
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=-1\n"); // push operation for -1 (true)
-                outputFile.write("(ENDCOMP." + numLabels + ")\n"); // End label
-                outputFile.flush(); // writes
-                numLabels++;
+                writeComparison(true, JGT, TO_SHARED_GT); // X > Y
                 break;
             case "lt":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on y
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M-D\n"); // pop operation on x AND D = x - y
-                outputFile.write("@TRUE." + numLabels + "\n" + "D;JLT\n"); // X < Y
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=0\n"); // push operation for 0 (false)
-                outputFile.write("@ENDCOMP." + numLabels + "\n" + "0;JMP\n"); // Jumps to end
-                outputFile.write("(TRUE." + numLabels + ")\n"); // TRUE label with unique tag
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=-1\n"); // push operation for -1 (true)
-                outputFile.write("(ENDCOMP." + numLabels + ")\n"); // End label
-                outputFile.flush(); // writes
-                numLabels++;
+                writeComparison(true, JLT, TO_SHARED_LT); // X < Y
                 break;
             case "and":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=D&M\n"); // pop operation on x2 AND x1 AND x2 operation
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                outputFile.flush(); // writes
+                write(AND); // pops x1 and x2, pushes x1 AND x2
                 break;
             case "or":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=D|M\n"); // pop operation on x2 AND x1 AND x2 operation
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                outputFile.flush(); // writes
+                write(OR); // pops x1 and x2, pushes x1 OR x2
                 break;
             case "not":
-                outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n");   // pop operation on x1
-                outputFile.write("D=!D\n"); // D = -D negative
-                outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                outputFile.flush(); // writes
+                write(NOT); // pops x1, pushes NOT x1
                 break;
             default:
-                // ignore, error
-                System.out.println("Problem with arithmetic or logical command, not found. Exiting Program.");
-                outputFile.close();
-                System.exit(0);
-                break;
+                // error, left for the caller to report.
+                throw new IllegalArgumentException("Problem with arithmetic or logical command, " + command
+                        + " not found.");
         }
 
     }
@@ -337,6 +497,8 @@ public class CodeWriter {
      * @param commandType the type of command to write.
      * @param segment the type of segment (location in RAM) to manipulate.
      * @param index the specific index of the segment provided.
+     * @throws IllegalArgumentException if the segment can't be used with the command.
+     * @throws IllegalStateException if a static variable wasn't part of the static allocation.
      */
     public void writePushPop(CommandType commandType, String segment, int index) {
         // decides to perform a pop or push translation.
@@ -344,163 +506,208 @@ public class CodeWriter {
         if (commandType == CommandType.C_PUSH) {
             switch (segment) {
                 case "argument":
-                    outputFile.write("@ARG\n"); // points to current ARG
-                    writeIncrement(index, segment); // Increments to ARG specified by index
-                    outputFile.write("D=M\n"); // Stores contents of RAM[(ARG + index)] into D
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    write(AT_ARG); // points to current ARG
+                    writePushIncrement(index, segment); // Increments to ARG specified by index
+                    write(D_EQUALS_M); // Stores contents of RAM[(ARG + index)] into D
+                    write(PUSH); // push operation
                     break;
                 case "local":
-                    outputFile.write("@LCL\n"); // points to current LCL
-                    writeIncrement(index, segment); // Increments to LCL specified by index
-                    outputFile.write("D=M\n"); // Stores contents of RAM[(LCL + index)] into D
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    write(AT_LCL); // points to current LCL
+                    writePushIncrement(index, segment); // Increments to LCL specified by index
+                    write(D_EQUALS_M); // Stores contents of RAM[(LCL + index)] into D
+                    write(PUSH); // push operation
                     break;
                 case "static":
-                    outputFile.write("@" + fileName + "." + index + "\n"); // points to @fileName.index
-                    outputFile.write("D=M\n"); // Stores contents of RAM[fileName.index] into D
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    writeStatic(index); // points to @fileName.index
+                    write(D_EQUALS_M); // Stores contents of RAM[fileName.index] into D
+                    write(PUSH); // push operation
                     break;
                 case "constant":
                     // Loads constant value into D, than moves it onto the stack via stack pointer.
-                    outputFile.write("@" + index + "\n" + "D=A\n"); // Load D register
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    write(AT);
+                    writeNumber(index);
+                    write(NEWLINE_D_EQUALS_A); // Load D register
+                    write(PUSH); // push operation
                     break;
                 case "this":
-                    outputFile.write("@THIS\n"); // points to current THIS
-                    writeIncrement(index, segment); // Increments to THIS specified by index
-                    outputFile.write("D=M\n"); // Stores contents of RAM[(THIS + index)] into D
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    write(AT_THIS); // points to current THIS
+                    writePushIncrement(index, segment); // Increments to THIS specified by index
+                    write(D_EQUALS_M); // Stores contents of RAM[(THIS + index)] into D
+                    write(PUSH); // push operation
                     break;
                 case "that":
-                    outputFile.write("@THAT\n"); // points to current THAT
-                    writeIncrement(index, segment); // Increments to THAT specified by index
-                    outputFile.write("D=M\n"); // Stores contents of RAM[(THAT + index)] into D
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    write(AT_THAT); // points to current THAT
+                    writePushIncrement(index, segment); // Increments to THAT specified by index
+                    write(D_EQUALS_M); // Stores contents of RAM[(THAT + index)] into D
+                    write(PUSH); // push operation
                     break;
                 case "pointer":
                     // pointer 0 (THIS), else pointer 1 (THAT)
-                    if (index < 1) {
-                        outputFile.write("@THIS\n"); // points to current THIS
-                        outputFile.write("D=M\n"); // Stores contents of RAM[THIS] into D
-                        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    } else {
-                        outputFile.write("@THAT\n"); // points to current THAT
-                        outputFile.write("D=M\n"); // Stores contents of RAM[THAT] into D
-                        outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    }
-                    outputFile.flush();
+                    write(index < 1 ? AT_THIS : AT_THAT); // points to current THIS / THAT
+                    write(D_EQUALS_M); // Stores contents of RAM[THIS / THAT] into D
+                    write(PUSH); // push operation
                     break;
                 case "temp":
-                    outputFile.write("@5\n"); // points to temp start, RAM[5]
+                    write(AT_TEMP); // points to temp start, RAM[5]
                     writeIncrement(index+1, segment); // Increments to temp + specified by index
-                    outputFile.write("D=M\n"); // Stores contents of RAM[(5 + index)] into D
-                    outputFile.write("@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=D\n"); // push operation
-                    outputFile.flush();
+                    write(D_EQUALS_M); // Stores contents of RAM[(5 + index)] into D
+                    write(PUSH); // push operation
                     break;
                 default:
-                    // exit program, bad segment
-                    System.out.println("Bad segment when translating VM line. Exiting program.");
-                    close();
-                    System.exit(0);
+                    // error, bad segment
+                    throw new IllegalArgumentException("Bad segment " + segment + " when translating VM line.");
             }
         } else if (commandType == CommandType.C_POP) {
             // @sp -> AM=M-1 -> D=M will always pop off stack onto D register, and decrement stack pointer.
             switch (segment) {
                 case "argument":
-                    outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                    outputFile.write("@ARG\n"); // points to current ARG
+                    write(POP); // pop operation
+                    write(AT_ARG); // points to current ARG
                     writeIncrement(index, segment); // Increments to ARG specified by index
-                    outputFile.write("M=D\n"); // Stores contents of D into RAM[(ARG + index)]
-                    outputFile.flush();
+                    write(M_EQUALS_D); // Stores contents of D into RAM[(ARG + index)]
                     break;
                 case "local":
-                    outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                    outputFile.write("@LCL\n"); // points to current LCL
+                    write(POP); // pop operation
+                    write(AT_LCL); // points to current LCL
                     writeIncrement(index, segment); // Increments to ARG specified by index
-                    outputFile.write("M=D\n"); // Stores contents of D into RAM[(LCL + index)]
-                    outputFile.flush();
+                    write(M_EQUALS_D); // Stores contents of D into RAM[(LCL + index)]
                     break;
                 case "static":
-                    outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                    outputFile.write("@" + fileName + "." + index + "\n"); // points to @fileName.index
-                    outputFile.write("M=D\n"); // Stores contents of D into RAM[fileName.index]
-                    outputFile.flush();
+                    write(POP); // pop operation
+                    writeStatic(index); // points to @fileName.index
+                    write(M_EQUALS_D); // Stores contents of D into RAM[fileName.index]
                     break;
                 case "this":
-                    outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                    outputFile.write("@THIS\n"); // points to current THIS
+                    write(POP); // pop operation
+                    write(AT_THIS); // points to current THIS
                     writeIncrement(index, segment); // Increments to THIS specified by index
-                    outputFile.write("M=D\n"); // Stores contents of D into RAM[(THIS + index)]
-                    outputFile.flush();
+                    write(M_EQUALS_D); // Stores contents of D into RAM[(THIS + index)]
                     break;
                 case "that":
-                    outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                    outputFile.write("@THAT\n"); // points to current THAT
+                    write(POP); // pop operation
+                    write(AT_THAT); // points to current THAT
                     writeIncrement(index, segment); // Increments to THAT specified by index
-                    outputFile.write("M=D\n"); // Stores contents of D into RAM[(THAT + index)]
-                    outputFile.flush();
+                    write(M_EQUALS_D); // Stores contents of D into RAM[(THAT + index)]
                     break;
                 case "pointer":
-                    if (index < 1) {
-                        outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                        outputFile.write("@THIS\n"); // points to current THIS
-                        outputFile.write("M=D\n"); // Stores contents of RAM[THIS] into D
-                    } else {
-                        outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                        outputFile.write("@THAT\n"); // points to current THAT
-                        outputFile.write("M=D\n"); // Stores contents of RAM[THAT] into D
-                    }
-                    outputFile.flush();
+                    write(POP); // pop operation
+                    write(index < 1 ? AT_THIS : AT_THAT); // points to current THIS / THAT
+                    write(M_EQUALS_D); // Stores contents of D into RAM[THIS / THAT]
                     break;
                 case "temp":
-                    outputFile.write("@SP\n" + "AM=M-1\n" + "D=M\n"); // pop operation
-                    outputFile.write("@5\n"); // points to temp start, RAM[5]
+                    write(POP); // pop operation
+                    write(AT_TEMP); // points to temp start, RAM[5]
                     writeIncrement(index+1, segment); // Increments to temp + specified by index
-                    outputFile.write("M=D\n"); // Stores contents of D into RAM[(5 + index)]
-                    outputFile.flush();
+                    write(M_EQUALS_D); // Stores contents of D into RAM[(5 + index)]
                     break;
                 default:
-                    // exit program, bad segment
-                    System.out.println("Bad segment when translating VM line. Exiting program.");
-                    close();
-                    System.exit(0);
+                    // error, bad segment
+                    throw new IllegalArgumentException("Bad segment " + segment + " when translating VM line.");
             }
         } else {
-            System.out.println("Bad commandType found when attempting to translate. Exiting program.");
-            close();
-            System.exit(0);
+            throw new IllegalArgumentException("Bad commandType found when attempting to translate.");
+        }
+    }
+
+    /**
+     * Starts a new ASM file on the same output stream, keeping the buffer and the encoded symbols.
+     * Used by TranslationDaemon, where each worker keeps one CodeWriter over its own output buffer.
+     *
+     * pre: the previous ASM file was flushed, anything still in the buffer is dropped.
+     * post: labels are counted from 0 again, there is no static allocation or plan, fileName is name.
+     *
+     * @param name the name used for the static variables of the first VM file.
+     */
+    public void reset(String name) {
+        position = 0;
+        numLabels = 0;
+        statics = null;
+        plan = null;
+        if (symbols.size() > MAX_KEPT_SYMBOLS) {
+            symbols.clear();
         }
+        fileName = null;
+        setFileName(name);
     }
 
     /**
-     * Handles closing the printWriter stream.
-     * pre: An open printWriter stream.
-     * post: Closes the printWriter stream.
+     * Handles writing everything in the buffer to the output stream, and flushing the stream.
+     * pre: An open output stream.
+     * post: Everything written so far has reached the output stream.
+     */
+    public void flush() {
+        drain();
+        try {
+            outputFile.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Handles closing the output stream.
+     * pre: An open output stream.
+     * post: Writes what is left in the buffer, then closes the output stream.
      */
     public void close() {
-        outputFile.close();
+        drain();
+        try {
+            outputFile.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     // Method for writing an i amount of M=M+1's for finding *addresses
     private void writeIncrement(int i, String segment) {
         // first write uses the address of the A register
         if (i != 0 && !segment.equals("temp")) {
-            outputFile.write("A=M+1\n");
+            write(A_EQUALS_M_PLUS_ONE);
         }
         for (int j = 1; j < i; j++) {
-            outputFile.write("A=A+1\n");
+            write(A_EQUALS_A_PLUS_ONE);
         }
 
         if (i == 0) {
-            outputFile.write("A=M\n");
+            write(A_EQUALS_M);
+        }
+    }
+
+    // Method for finding *addresses when pushing, D is free so a large index can be added instead of counted up.
+    // Only done when following an OptimizationPlan, as it is both smaller and faster past index 3.
+    private void writePushIncrement(int i, String segment) {
+        if (plan != null && i > 3) {
+            write(INDEXED);
+            writeNumber(i);
+            write(A_EQUALS_D_PLUS_A);
+        } else {
+            writeIncrement(i, segment);
+        }
+    }
+
+    /**
+     * Writes the shared subroutines used by the sites of the OptimizationPlan.
+     * pre: finished with writing every VM file, after writeEndLoop so they are only reached by jumps.
+     * post: writes each subroutine the plan needs, nothing if there is no plan.
+     */
+    public void writeSharedRoutines() {
+        if (plan == null) {
+            return;
+        }
+
+        if (plan.isShared(OptimizationPlan.Site.CALL)) {
+            write(SHARED_CALL);
         }
-        outputFile.flush();
+        if (plan.isShared(OptimizationPlan.Site.RETURN)) {
+            write(SHARED_RETURN);
+            write(RETURN);
+        }
+        if (plan.isShared(OptimizationPlan.Site.COMPARE)) {
+            write(SHARED_EQ);
+            write(SHARED_GT);
+            write(SHARED_LT);
+        }
+        flush();
     }
 
     /**
@@ -509,10 +716,225 @@ public class CodeWriter {
      * post: Closes off ASM file with an infinite loop for security measures.
      */
     public void writeEndLoop() {
-        outputFile.write("(END.ALL.LOOP)\n");
-        outputFile.write("@END.ALL.LOOP\n");
-        outputFile.write("0;JMP\n");
-        outputFile.flush(); // writes
+        write(END_LOOP);
+        flush(); // writes
+    }
+
+    // Method for writing a comparison, the jump is taken when x - y makes it true.
+    // signed comparisons (gt, lt) can't let x - y overflow, eq is the same either way.
+    private void writeComparison(boolean signed, byte[] jump, byte[] shared) {
+        if (isShared()) {
+            // return address into temp13, then into the subroutine.
+            write(AT);
+            write(RETURN_ADDRESS);
+            writeNumber(numLabels);
+            write(D_TO_TEMP13);
+            write(shared);
+            write(OPEN);
+            write(RETURN_ADDRESS);
+            writeNumber(numLabels);
+            write(CLOSE);
+            numLabels++;
+            return;
+        }
+
+        if (signed) {
+            writePieces(SIGNED_COMPARE_PIECES); // pops y, pops x AND D = the sign of x - y
+        } else {
+            write(COMPARE); // pops y, pops x AND D = x - y
+        }
+        write(AT);
+        write(TRUE);
+        writeNumber(numLabels);
+        write(jump);
+        write(PUSH_ZERO); // push operation for 0 (false)
+        write(AT);
+        write(ENDCOMP);
+        writeNumber(numLabels);
+        write(JMP); // Jumps to end
+        if (signed) {
+            writePieces(MIXED_SIGNS_PIECES);
+        }
+        write(OPEN);
+        write(TRUE);
+        writeNumber(numLabels);
+        write(CLOSE); // TRUE label with unique tag
+        write(PUSH_TRUE); // push operation for -1 (true)
+        write(OPEN);
+        write(ENDCOMP);
+        writeNumber(numLabels);
+        write(CLOSE); // End label
+        numLabels++;
+    }
+
+    // Method for writing pieces of a template with the current label number between them.
+    private void writePieces(byte[][] pieces) {
+        for (int i = 0; i < pieces.length; i++) {
+            if (i > 0) {
+                writeNumber(numLabels);
+            }
+            write(pieces[i]);
+        }
+    }
+
+    // Method for writing a call through $CALL.
+    private void writeSharedCall(byte[] function, int numArgs) {
+        // writes in a comment.
+        write(CALL_COMMENT);
+        write(function);
+        write(WITH);
+        writeNumber(numArgs);
+        write(NEWLINE);
+
+        // function into temp14, argument count into temp13.
+        write(AT);
+        write(function);
+        write(D_TO_TEMP14);
+        write(AT);
+        writeNumber(numArgs);
+        write(D_TO_TEMP13);
+
+        // return address into D, then into the subroutine.
+        write(AT);
+        write(RETURN_ADDRESS);
+        writeNumber(numLabels);
+        write(NEWLINE);
+        write(TO_SHARED_CALL);
+        write(OPEN);
+        write(RETURN_ADDRESS);
+        writeNumber(numLabels);
+        write(CLOSE);
+        numLabels++;
+    }
+
+    // Method for checking if the next site uses its shared subroutine, moves on to the next site.
+    private boolean isShared() {
+        return plan != null && !plan.isInline(fileName, site++);
+    }
+
+    // Method for writing @fileName.index, or @address when static variables have been allocated.
+    private void writeStatic(int index) {
+        write(AT);
+        if (statics != null) {
+            int address = statics.address(fileName, index);
+            if (address < 0) {
+                throw new IllegalStateException("Static variable " + fileName + "." + index + " was not allocated.");
+            }
+            writeNumber(address);
+            write(NEWLINE);
+            return;
+        }
+
+        write(fileNameBytes);
+        write(DOT);
+        writeNumber(index);
+        write(NEWLINE);
+    }
+
+    // Method for writing (symbol)
+    private void writeLabelLine(byte[] symbol) {
+        write(OPEN);
+        write(symbol);
+        write(CLOSE);
+    }
+
+    // Method for getting the encoded bytes of a symbol, each symbol is only encoded once.
+    private byte[] symbol(String name) {
+        byte[] bytes = symbols.get(name);
+        if (bytes == null) {
+            bytes = name.getBytes(StandardCharsets.UTF_8);
+            symbols.put(name, bytes);
+        }
+        return bytes;
+    }
+
+    // Method for writing a number in decimal digits, straight into the buffer.
+    private void writeNumber(int number) {
+        // 11 bytes fits any int, including the sign.
+        reserve(11);
+        if (number < 0) {
+            buffer[position++] = '-';
+        } else {
+            number = -number; // counts down in negatives, so Integer.MIN_VALUE works too.
+        }
+
+        int digits = 1;
+        for (int rest = number / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' - number % 10);
+            number /= 10;
+        }
+        position = end;
+    }
+
+    // Method for copying bytes into the buffer.
+    private void write(byte[] bytes) {
+        if (bytes.length > buffer.length) {
+            drain();
+            try {
+                outputFile.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        reserve(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    // Method for making room for count more bytes in the buffer.
+    private void reserve(int count) {
+        if (position + count > buffer.length) {
+            drain();
+        }
+    }
+
+    // Method for writing the buffer to the output stream.
+    private void drain() {
+        if (position == 0) {
+            return;
+        }
+
+        try {
+            outputFile.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+
+    // Method for encoding the subroutine of a comparison, it returns to the address in temp13.
+    // gt and lt use the labels of SIGNED_COMPARE and MIXED_SIGNS numbered by the subroutine's name, ex: MIXED.$GT.
+    private static byte[] sharedComparison(String name, String jump) {
+        boolean signed = !jump.equals("JEQ");
+        String difference = signed ? String.join(name, SIGNED_COMPARE)
+                : "@SP\n" + "AM=M-1\n" + "D=M\n" + "@SP\n" + "AM=M-1\n" + "D=M-D\n";
+        return ascii("(" + name + ")\n" + difference
+                + "@" + name + ".TRUE\n" + "D;" + jump + "\n"
+                + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=0\n" + "@13\n" + "A=M\n" + "0;JMP\n"
+                + (signed ? String.join(name, MIXED_SIGNS) : "")
+                + "(" + name + ".TRUE)\n"
+                + "@SP\n" + "AM=M+1\n" + "A=A-1\n" + "M=-1\n" + "@13\n" + "A=M\n" + "0;JMP\n");
+    }
+
+    // Method for encoding a template.
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Method for encoding the pieces of a template that go around label numbers.
+    private static byte[][] pieces(String[] texts) {
+        byte[][] pieces = new byte[texts.length][];
+        for (int i = 0; i < texts.length; i++) {
+            pieces[i] = ascii(texts[i]);
+        }
+        return pieces;
     }
 
 }
@@ -0,0 +1,463 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * This class cleans up the jumps of a whole translated program, since CodeWriter writes each command on its own.
+ *
+ * The ASM code is split into basic blocks (starting at labels, ending after jumps), then until nothing changes:
+ * 1: jumps to a block that only jumps on (goto to a goto) go straight to the final label.
+ * 2: jumps to the very next instruction are removed.
+ * 3: "@T, D;Jcc, @U, 0;JMP, (T)" becomes "@U, D;J!cc, (T)" so the taken jump falls through.
+ * 4: a block only reached by one unconditional jump is moved right after it, and the jump removed.
+ * 5: blocks that can't be reached are removed.
+ * A label is treated as reachable from anywhere if its address is used other than as a direct jump,
+ * ex: "@RETURN_ADDRESS_0, D=A", as it may be jumped to through A=M. Like all CodeWriter code, the cleaned
+ * code never expects a value in A when arriving at a label.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class ControlFlowCleanup {
+
+    // private variables and objects
+    private List<Block> blocks;
+    private HashMap<String, Block> labels;
+    private HashSet<String> addressTaken;
+    private int threaded;
+    private int removedJumps;
+    private int inverted;
+    private int moved;
+    private int removedInstructions;
+
+    private ControlFlowCleanup(List<String> lines) {
+        this.blocks = new ArrayList<>();
+        this.labels = new HashMap<>();
+        this.addressTaken = new HashSet<>();
+
+        // splits the code into basic blocks.
+        Block block = new Block();
+        blocks.add(block);
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith("(")) {
+                if (!block.code.isEmpty()) {
+                    block = new Block();
+                    blocks.add(block);
+                }
+                String label = line.substring(1, line.length() - 1);
+                block.labels.add(label);
+                labels.put(label, block);
+            } else {
+                block.code.add(line);
+                if (isJump(line)) {
+                    block = new Block();
+                    blocks.add(block);
+                }
+            }
+        }
+
+        // labels used for anything but a direct jump can be reached from anywhere.
+        for (Block each : blocks) {
+            List<String> instructions = each.instructions();
+            for (int i = 0; i < instructions.size(); i++) {
+                String symbol = symbolOf(instructions.get(i));
+                if (symbol != null && !(i + 1 < instructions.size() && isDirectJump(instructions.get(i + 1)))) {
+                    addressTaken.add(symbol);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cleans up the jumps of a whole program.
+     *
+     * pre: lines are the complete ASM code of a program, starting at ROM[0].
+     * post: returns ASM code that leaves RAM the same as the original when run, usually shorter and faster.
+     *
+     * @param lines the lines of ASM code.
+     * @return the cleaned up lines of ASM code.
+     */
+    public static List<String> clean(List<String> lines) {
+        return new ControlFlowCleanup(lines).run();
+    }
+
+    /**
+     * Cleans up the jumps of a whole program held in memory, and reports what was done.
+     *
+     * pre: asm is the complete ASM code of a program, as written by CodeWriter.
+     * post: writes the cleaned up ASM code to output, does not close it.
+     *
+     * @param asm the ASM code.
+     * @param output where the cleaned up ASM code is written.
+     * @return the report.
+     * @throws IOException if the output can't be written.
+     */
+    public static String clean(byte[] asm, OutputStream output) throws IOException {
+        ControlFlowCleanup cleanup = new ControlFlowCleanup(Arrays.asList(new String(asm, StandardCharsets.UTF_8).split("\n")));
+        for (String line : cleanup.run()) {
+            output.write(line.getBytes(StandardCharsets.UTF_8));
+            output.write('\n');
+        }
+        output.flush();
+
+        return "Control flow cleanup: " + cleanup.threaded + " jumps threaded, " + cleanup.removedJumps
+                + " jumps to the next instruction removed, " + cleanup.inverted + " branches inverted, "
+                + cleanup.moved + " blocks moved, " + cleanup.removedInstructions + " unreachable instructions removed.";
+    }
+
+    // Runs every step until nothing changes, then writes the blocks back out.
+    private List<String> run() {
+        boolean changed = true;
+        while (changed) {
+            changed = threadJumps();
+            changed |= removeJumpsToNext();
+            changed |= invertBranches();
+            changed |= moveBlocks();
+            changed |= removeUnreachable();
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (Block block : blocks) {
+            for (String label : block.labels) {
+                lines.add("(" + label + ")");
+            }
+            lines.addAll(block.code);
+        }
+        return lines;
+    }
+
+    // Step 1: jumps to a block that only jumps on go to where that block goes.
+    private boolean threadJumps() {
+        boolean changed = false;
+
+        for (Block block : blocks) {
+            String target = block.jumpTarget();
+            if (target == null) {
+                continue;
+            }
+
+            String last = finalTarget(target);
+            if (!last.equals(target)) {
+                block.setJumpTarget(last);
+                threaded++;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    // Follows a chain of blocks that are nothing but "@label, 0;JMP".
+    private String finalTarget(String target) {
+        HashSet<String> seen = new HashSet<>();
+        String current = target;
+
+        while (seen.add(current)) {
+            Block block = labels.get(current);
+            if (block == null || block.instructionCount() != 2 || !block.isUnconditional()
+                    || block.jumpTarget() == null) {
+                break;
+            }
+            current = block.jumpTarget();
+        }
+
+        // a chain that loops back on itself stops where it started looping, any block of the loop is the same.
+        return current;
+    }
+
+    // Step 2: removes jumps to the block that follows anyway.
+    private boolean removeJumpsToNext() {
+        boolean changed = false;
+
+        for (int i = 0; i + 1 < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            String target = block.jumpTarget();
+            if (target != null && blocks.get(i + 1).labels.contains(target)) {
+                block.removeJump();
+                removedJumps++;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    // Step 3: "@T, D;Jcc, @U, 0;JMP, (T)" -> "@U, D;J!cc, (T)".
+    private boolean invertBranches() {
+        List<Block> kept = new ArrayList<>(blocks.size());
+
+        for (int i = 0; i < blocks.size(); i++) {
+            Block branch = blocks.get(i);
+            kept.add(branch);
+            if (i + 2 >= blocks.size()) {
+                continue;
+            }
+
+            Block jump = blocks.get(i + 1);
+            String target = branch.jumpTarget();
+            if (target != null && !branch.isUnconditional() && jump.labels.isEmpty() && jump.code.size() == 2
+                    && jump.isUnconditional() && jump.jumpTarget() != null
+                    && blocks.get(i + 2).labels.contains(target)) {
+                String inverse = inverse(branch.jumpInstruction());
+                if (inverse != null) {
+                    branch.replaceJump(jump.jumpTarget(), inverse);
+                    i++; // the jump block is dropped.
+                    inverted++;
+                }
+            }
+        }
+
+        boolean changed = kept.size() != blocks.size();
+        blocks = kept;
+        return changed;
+    }
+
+    // Step 4: moves each block only reached by one unconditional jump to right after the jump, all in one pass.
+    private boolean moveBlocks() {
+        HashMap<Block, Integer> index = indexes();
+        HashMap<Block, Integer> jumpsTo = new HashMap<>();
+        for (Block block : blocks) {
+            String target = block.jumpTarget();
+            if (target != null) {
+                jumpsTo.merge(labels.get(target), 1, Integer::sum);
+            }
+        }
+
+        // block -> the block moved after it. A block takes part in one move per pass, so moves can't chain
+        // or loop, and whether a block falls through is as it was before the pass.
+        HashMap<Block, Block> followers = new HashMap<>();
+        HashSet<Block> used = new HashSet<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            String target = block.jumpTarget();
+            if (target == null || !block.isUnconditional() || used.contains(block)) {
+                continue;
+            }
+
+            Block moving = labels.get(target);
+            int from = index.get(moving);
+            if (from <= 0 || from == i + 1 || moving == block || used.contains(moving) || isRoot(moving)
+                    || jumpsTo.get(moving) != 1 || fallsThrough(blocks.get(from - 1)) || fallsThrough(moving)) {
+                continue;
+            }
+
+            followers.put(block, moving);
+            used.add(block);
+            used.add(moving);
+        }
+        if (followers.isEmpty()) {
+            return false;
+        }
+
+        List<Block> placed = new ArrayList<>(blocks.size());
+        HashSet<Block> movedBlocks = new HashSet<>(followers.values());
+        for (Block block : blocks) {
+            if (movedBlocks.contains(block)) {
+                continue;
+            }
+            placed.add(block);
+            Block follower = followers.get(block);
+            if (follower != null) {
+                block.removeJump();
+                placed.add(follower);
+                moved++;
+            }
+        }
+
+        blocks = placed;
+        return true;
+    }
+
+    // Step 5: removes blocks that can't be reached from the start or from a label whose address is used.
+    private boolean removeUnreachable() {
+        HashMap<Block, Integer> index = indexes();
+        boolean[] reached = new boolean[blocks.size()];
+        ArrayDeque<Integer> waiting = new ArrayDeque<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i == 0 || isRoot(blocks.get(i))) {
+                waiting.add(i);
+            }
+        }
+
+        while (!waiting.isEmpty()) {
+            int i = waiting.poll();
+            if (reached[i]) {
+                continue;
+            }
+            reached[i] = true;
+
+            Block block = blocks.get(i);
+            String target = block.jumpTarget();
+            if (target != null) {
+                waiting.add(index.get(labels.get(target)));
+            }
+            if (fallsThrough(block) && i + 1 < blocks.size()) {
+                waiting.add(i + 1);
+            }
+        }
+
+        List<Block> kept = new ArrayList<>(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (reached[i]) {
+                kept.add(block);
+            } else {
+                removedInstructions += block.instructionCount();
+                for (String label : block.labels) {
+                    labels.remove(label);
+                }
+            }
+        }
+
+        boolean changed = kept.size() != blocks.size();
+        blocks = kept;
+        return changed;
+    }
+
+    // Maps each block to where it is in blocks, so finding a block's neighbours doesn't search the list.
+    private HashMap<Block, Integer> indexes() {
+        HashMap<Block, Integer> index = new HashMap<>(blocks.size() * 2);
+        for (int i = 0; i < blocks.size(); i++) {
+            index.put(blocks.get(i), i);
+        }
+        return index;
+    }
+
+    // Checks if a block can be reached through its label's address.
+    private boolean isRoot(Block block) {
+        for (String label : block.labels) {
+            if (addressTaken.contains(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Checks if running off the end of a block continues into the next block.
+    private static boolean fallsThrough(Block block) {
+        List<String> instructions = block.instructions();
+        return instructions.isEmpty() || !isJump(instructions.get(instructions.size() - 1)) || !block.isUnconditional();
+    }
+
+    // Checks if an instruction is a C-instruction with a jump.
+    private static boolean isJump(String instruction) {
+        return !instruction.startsWith("@") && !instruction.startsWith("//") && instruction.contains(";");
+    }
+
+    // Checks if an instruction jumps to the A register without changing it, so the @label before it is the target.
+    private static boolean isDirectJump(String instruction) {
+        return isJump(instruction) && !instruction.contains("=");
+    }
+
+    // Gets the label of an A-instruction, null if it is a number or not an A-instruction.
+    private static String symbolOf(String instruction) {
+        if (!instruction.startsWith("@") || instruction.length() < 2 || Character.isDigit(instruction.charAt(1))) {
+            return null;
+        }
+        return instruction.substring(1);
+    }
+
+    // Gets the jump instruction with the opposite condition, ex: "D;JEQ" -> "D;JNE".
+    private static String inverse(String instruction) {
+        String comp = instruction.substring(0, instruction.indexOf(';'));
+        switch (instruction.substring(instruction.indexOf(';') + 1)) {
+            case "JEQ":
+                return comp + ";JNE";
+            case "JNE":
+                return comp + ";JEQ";
+            case "JGT":
+                return comp + ";JLE";
+            case "JLE":
+                return comp + ";JGT";
+            case "JLT":
+                return comp + ";JGE";
+            case "JGE":
+                return comp + ";JLT";
+            default:
+                return null;
+        }
+    }
+
+    // A basic block, its labels then its code (instructions and comments).
+    private class Block {
+        private List<String> labels = new ArrayList<>();
+        private List<String> code = new ArrayList<>();
+
+        // The code without comments.
+        private List<String> instructions() {
+            List<String> instructions = new ArrayList<>();
+            for (String line : code) {
+                if (!line.startsWith("//")) {
+                    instructions.add(line);
+                }
+            }
+            return instructions;
+        }
+
+        private int instructionCount() {
+            return instructions().size();
+        }
+
+        // The label this block ends by jumping to, null if it doesn't end with "@label, comp;jump".
+        private String jumpTarget() {
+            int jump = lastInstruction();
+            int at = previousInstruction(jump);
+            if (jump < 0 || at < 0 || !isDirectJump(code.get(jump))) {
+                return null;
+            }
+            String symbol = symbolOf(code.get(at));
+            return symbol != null && ControlFlowCleanup.this.labels.containsKey(symbol) ? symbol : null;
+        }
+
+        private String jumpInstruction() {
+            return code.get(lastInstruction());
+        }
+
+        // Checks if the block ends with a jump that is always taken.
+        private boolean isUnconditional() {
+            int jump = lastInstruction();
+            return jump >= 0 && isJump(code.get(jump)) && code.get(jump).endsWith(";JMP");
+        }
+
+        private void setJumpTarget(String target) {
+            code.set(previousInstruction(lastInstruction()), "@" + target);
+        }
+
+        private void replaceJump(String target, String instruction) {
+            int jump = lastInstruction();
+            code.set(previousInstruction(jump), "@" + target);
+            code.set(jump, instruction);
+        }
+
+        private void removeJump() {
+            int jump = lastInstruction();
+            int at = previousInstruction(jump);
+            code.remove(jump);
+            code.remove(at);
+        }
+
+        private int lastInstruction() {
+            return previousInstruction(code.size());
+        }
+
+        private int previousInstruction(int index) {
+            for (int i = index - 1; i >= 0; i--) {
+                if (!code.get(i).startsWith("//")) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Checks that every way of translating a program leaves the same RAM as running its VM commands directly.
+ *
+ * Each program runs under VMExecutor, then is translated in every mode, assembled and run on HackSimulator.
+ * The final SP, LCL, ARG, THIS, THAT, temp, the stack up to SP, the heap, and every static variable (wherever
+ * the mode placed it) must match. The profile mode plans within a ROM budget halfway between every site shared and
+ * every run site inline, and the program must fit in it.
+ * A program that fails is shrunk, removing commands and making constants small for as long as the same mode still
+ * fails, and the smallest failing program is printed.
+ * Programs come from ProgramGenerator, or are the VM files given. They are tested in parallel, one per core.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class DifferentialTester {
+
+    // Most VM commands a program may run, and Hack cycles per VM command allowed for the translation.
+    private static final long MAX_STEPS = 200000;
+    private static final long CYCLES_PER_STEP = 100;
+
+    // Most failures shrunk and printed.
+    private static final int MAX_REPORTED = 5;
+
+    /**
+     * The ways a program is translated.
+     */
+    public enum Mode {
+        PLAIN,
+        STATIC_ALLOC,
+        PROFILE,
+        SHARED,
+        CLEANUP,
+        PIPELINE,
+        CACHE,
+        CACHE_PROFILE,
+        ALL;
+
+        // the name as given to --modes, ex: "static-alloc".
+        private String option() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    // private variables and objects
+    private List<Mode> modes;
+    private boolean compile;
+    private boolean shrink;
+    private Path relativeTo;
+    private ThreadLocal<Path> workspace;
+    private List<Path> workspaces;
+    private AtomicInteger tested;
+    private AtomicInteger skipped;
+    private AtomicInteger failed;
+
+    private DifferentialTester(List<Mode> modes, boolean compile, boolean shrink) {
+        this.modes = modes;
+        this.compile = compile;
+        this.shrink = shrink;
+        this.relativeTo = VMTranslator.locate("").toPath().toAbsolutePath();
+        this.workspaces = new ArrayList<>();
+        this.workspace = ThreadLocal.withInitial(this::newWorkspace);
+        this.tested = new AtomicInteger();
+        this.skipped = new AtomicInteger();
+        this.failed = new AtomicInteger();
+    }
+
+    /*
+    Projects main method.
+
+    Usage: DifferentialTester [--programs n] [--seed s] [--threads n] [--modes mode,...] [--jit] [--no-shrink] [file.vm ...]
+    Tests n generated programs (1000 by default), seeded s, s + 1, ... (0 by default), or the VM files given as
+    one program. Modes: plain, static-alloc, profile, shared, cleanup, pipeline, cache, cache-profile and all,
+    every one by default.
+    With --jit, the translations run compiled, see HackJit.
+    Exits with status 1 if any program fails.
+     */
+    public static void main(String[] args) {
+        int programs = 1000;
+        long seed = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Mode> modes = new ArrayList<>(Arrays.asList(Mode.values()));
+        boolean compile = false;
+        boolean shrink = true;
+        List<String> filesRead = new ArrayList<>();
+
+        // reads the command line options.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--programs":
+                        programs = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--modes":
+                        modes.clear();
+                        for (String option : args[++i].split(",")) {
+                            modes.add(Mode.valueOf(option.toUpperCase().replace('-', '_')));
+                        }
+                        break;
+                    case "--jit":
+                        compile = true;
+                        break;
+                    case "--no-shrink":
+                        shrink = false;
+                        break;
+                    default:
+                        filesRead.add(args[i]);
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Unable to read the options. Exiting program.");
+            System.exit(0);
+        }
+
+        if (!VMTranslator.locate("").isDirectory()) {
+            System.out.println("Unable to locate the src folder, run from the folder holding it. Exiting program.");
+            System.exit(0);
+        }
+
+        DifferentialTester tester = new DifferentialTester(modes, compile, shrink);
+        long start = System.nanoTime();
+
+        if (!filesRead.isEmpty()) {
+            LinkedHashMap<String, String> program = new LinkedHashMap<>();
+            for (String fileRead : filesRead) {
+                try {
+                    program.put(VMTranslator.baseName(fileRead),
+                            new String(Files.readAllBytes(VMTranslator.locate(fileRead).toPath()), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    System.out.println("Unable to locate " + fileRead + ". Exiting program.");
+                    System.exit(0);
+                }
+            }
+            tester.test(String.join(" ", filesRead), program, true);
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < programs; i++) {
+                long programSeed = seed + i;
+                pool.execute(() -> tester.test("seed " + programSeed, ProgramGenerator.generate(programSeed), false));
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        tester.deleteWorkspaces();
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("Tested " + tester.tested + " programs in " + modes.size() + " modes (" + tester.skipped
+                + " skipped as invalid) in " + millis + " ms, " + tester.tested.get() * 60000L / millis
+                + " programs per minute, " + tester.failed + " failed.");
+        if (tester.failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Tests one program in every mode, shrinking and printing it if it fails.
+    private void test(String name, LinkedHashMap<String, String> program, boolean explain) {
+        try {
+            VMExecutor reference;
+            try {
+                reference = reference(program);
+            } catch (RuntimeException e) {
+                skipped.incrementAndGet();
+                if (explain) {
+                    System.out.println(name + " isn't a valid test: " + e.getMessage());
+                }
+                return;
+            }
+
+            List<String> filesRead = write(program);
+            for (Mode mode : modes) {
+                String difference = difference(filesRead, reference, mode, explain);
+                if (difference == null) {
+                    continue;
+                }
+
+                if (failed.incrementAndGet() <= MAX_REPORTED) {
+                    LinkedHashMap<String, String> smallest = shrink ? shrink(program, mode) : program;
+                    String smallestDifference = difference(write(smallest), execute(smallest), mode, false);
+                    report(name, mode, difference, program, smallest, smallestDifference);
+                }
+                return;
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.out.println(name + ": unable to write the program, " + e.getMessage());
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            System.out.println(name + ": " + e);
+        } finally {
+            tested.incrementAndGet();
+        }
+    }
+
+    // Runs a program under the reference, throws IllegalStateException if it isn't a valid test.
+    private static VMExecutor reference(Map<String, String> program) {
+        List<byte[]> sources = new ArrayList<>();
+        for (String source : program.values()) {
+            sources.add(source.getBytes(StandardCharsets.UTF_8));
+        }
+
+        VMExecutor reference = new VMExecutor(new ArrayList<>(program.keySet()), sources);
+        setUp(reference::poke);
+        reference.run(MAX_STEPS);
+        return reference;
+    }
+
+    // Runs a program under the reference, null if it isn't a valid test.
+    private static VMExecutor execute(Map<String, String> program) {
+        try {
+            return reference(program);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Writes the VM files of a program in this thread's folder, returns their names as found through src.
+    private List<String> write(Map<String, String> program) throws IOException {
+        Path directory = workspace.get();
+        String prefix = relativeTo.relativize(directory).toString() + File.separator;
+        List<String> filesRead = new ArrayList<>();
+        for (Map.Entry<String, String> file : program.entrySet()) {
+            Files.write(directory.resolve(file.getKey() + ".vm"), file.getValue().getBytes(StandardCharsets.UTF_8));
+            filesRead.add(prefix + file.getKey() + ".vm");
+        }
+        return filesRead;
+    }
+
+    // Translates a written program in one mode, runs it and finds the first difference from the reference, null if none.
+    // With explain, prints what the cleanup changed.
+    private String difference(List<String> filesRead, VMExecutor reference, Mode mode, boolean explain)
+            throws IOException {
+        Path directory = workspace.get();
+        String prefix = relativeTo.relativize(directory).toString() + File.separator;
+        StaticAllocation statics = null;
+        int romBudget = OptimizationPlan.ROM_SIZE;
+        HackRom rom;
+        try {
+            ByteArrayOutputStream asm = new ByteArrayOutputStream();
+            OptimizationPlan plan = null;
+            if (mode == Mode.STATIC_ALLOC || mode == Mode.ALL) {
+                statics = StaticAllocation.allocate(filesRead);
+            }
+            boolean planned = mode == Mode.PROFILE || mode == Mode.SHARED || mode == Mode.CACHE_PROFILE
+                    || mode == Mode.ALL;
+            if (planned) {
+                // the reference run is the profile, an empty profile has every site shared.
+                Files.write(directory.resolve("run.prof"),
+                        (mode == Mode.SHARED ? "" : reference.profile()).getBytes(StandardCharsets.UTF_8));
+                plan = OptimizationPlan.plan(filesRead, ExecutionProfile.load(prefix + "run.prof"), OptimizationPlan.ROM_SIZE);
+            }
+            if (mode == Mode.PROFILE) {
+                // planned again within a budget halfway between every site shared and every run site inline. The
+                // second can be the smaller when inlining every site of a kind leaves out its subroutine.
+                Files.write(directory.resolve("shared.prof"), new byte[0]);
+                int shared = OptimizationPlan.plan(filesRead, ExecutionProfile.load(prefix + "shared.prof"),
+                        OptimizationPlan.ROM_SIZE).getSize();
+                romBudget = Math.max(shared, (shared + plan.getSize()) / 2);
+                plan = OptimizationPlan.plan(filesRead, ExecutionProfile.load(prefix + "run.prof"), romBudget);
+            }
+
+            if (mode == Mode.PIPELINE) {
+                TranslationPipeline.translate(filesRead, asm, null, null);
+            } else {
+                TranslationCache cache = null;
+                int misses = 0;
+                if (mode == Mode.CACHE || mode == Mode.CACHE_PROFILE) {
+                    // the cache is filled from copies of the files under other names, so a hit is only right
+                    // if the entry doesn't depend on the file name. The second translation is all cache hits.
+                    cache = new TranslationCache(directory.resolve("cache").toFile(), 1024 * 1024);
+                    List<String> copies = copy(filesRead);
+                    translate(copies, null, planned ? OptimizationPlan.plan(copies,
+                            ExecutionProfile.load(prefix + "run.prof"), OptimizationPlan.ROM_SIZE) : null, cache);
+                    misses = cache.getMisses();
+                }
+                asm.write(translate(filesRead, statics, plan, cache));
+                if (cache != null && cache.getMisses() != misses) {
+                    return (cache.getMisses() - misses) + " files missed the cache";
+                }
+            }
+
+            if (mode == Mode.CLEANUP || mode == Mode.ALL) {
+                byte[] translated = asm.toByteArray();
+                asm.reset();
+                String report = ControlFlowCleanup.clean(translated, asm);
+                if (explain) {
+                    System.out.println(mode.option() + ": " + report);
+                }
+            }
+            rom = HackRom.assemble(asm.toByteArray());
+        } catch (RuntimeException e) {
+            return "translation failed, " + e;
+        }
+        if (rom.size() > romBudget) {
+            return "takes up " + rom.size() + " instructions, over the ROM budget of " + romBudget;
+        }
+
+        HackSimulator simulator = new HackSimulator(rom, compile ? new HackJit(rom) : null);
+        setUp(simulator::poke);
+        simulator.run(reference.getSteps() * CYCLES_PER_STEP + 1000);
+        if (!simulator.isHalted()) {
+            return "didn't halt within " + simulator.getCycles() + " cycles";
+        }
+
+        // segment pointers, temp, the stack and the heap.
+        String[] names = {"SP", "LCL", "ARG", "THIS", "THAT"};
+        for (int address = 0; address < 13; address++) {
+            if (simulator.peek(address) != reference.peek(address)) {
+                return (address < names.length ? names[address] : "temp " + (address - 5)) + " is "
+                        + simulator.peek(address) + ", expected " + reference.peek(address);
+            }
+        }
+        for (int address = VMExecutor.STACK; address < VMExecutor.HEAP_END; address++) {
+            if (address == reference.peek(0)) {
+                address = VMExecutor.HEAP;
+            }
+            if (simulator.peek(address) != reference.peek(address)) {
+                return "RAM[" + address + "] is " + simulator.peek(address) + ", expected " + reference.peek(address);
+            }
+        }
+
+        // static variables, wherever the mode placed them.
+        for (Map.Entry<String, int[]> file : reference.getStatics().entrySet()) {
+            int[] values = file.getValue();
+            for (int index = 0; index < values.length; index++) {
+                int address = statics != null ? statics.address(file.getKey(), index)
+                        : rom.address(file.getKey() + "." + index);
+                int value = address < 0 ? 0 : simulator.peek(address);
+                if (value != (short) values[index]) {
+                    return "static " + file.getKey() + "." + index + " is " + value + ", expected " + (short) values[index];
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Writes a copy of each VM file of a program named "Copy" + its name, returns their names as found through src.
+    private static List<String> copy(List<String> filesRead) throws IOException {
+        List<String> copies = new ArrayList<>();
+        for (String fileRead : filesRead) {
+            File file = VMTranslator.locate(fileRead);
+            File copy = new File(file.getParentFile(), "Copy" + file.getName());
+            Files.write(copy.toPath(), Files.readAllBytes(file.toPath()));
+            copies.add(fileRead.substring(0, fileRead.length() - file.getName().length()) + copy.getName());
+        }
+        return copies;
+    }
+
+    // Translates a program into memory with VMTranslator.translateFiles.
+    private static byte[] translate(List<String> filesRead, StaticAllocation statics, OptimizationPlan plan,
+                                    TranslationCache cache) {
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter writer = new CodeWriter(asm, "");
+        writer.setStaticAllocation(statics);
+        writer.setOptimizationPlan(plan);
+        VMTranslator.translateFiles(filesRead, writer, cache);
+        writer.close();
+        return asm.toByteArray();
+    }
+
+    // Sets up RAM the same way for the reference and the translation, the first function's frame at RAM[256].
+    private static void setUp(RamSetter ram) {
+        ram.poke(0, VMExecutor.STACK);
+        ram.poke(1, VMExecutor.STACK);
+        ram.poke(2, VMExecutor.STACK);
+        ram.poke(3, 3000);
+        ram.poke(4, 4000);
+    }
+
+    /*
+    Shrinks a failing program, first removing runs of lines, halving the run length each time nothing more can be
+    removed, then making push constant commands push 0 or 1. A change is kept if the program is still a valid test
+    and still fails in the same mode.
+     */
+    private LinkedHashMap<String, String> shrink(LinkedHashMap<String, String> program, Mode mode) throws IOException {
+        List<String> fileNames = new ArrayList<>(program.keySet());
+        List<List<String>> lines = new ArrayList<>();
+        for (String source : program.values()) {
+            lines.add(new ArrayList<>(Arrays.asList(source.split("\n"))));
+        }
+
+        int total = lines.stream().mapToInt(List::size).sum();
+        for (int run = Math.max(1, total / 2); run >= 1; run /= 2) {
+            boolean removed = true;
+            while (removed) {
+                removed = false;
+                for (int start = 0; start < lines.stream().mapToInt(List::size).sum(); ) {
+                    List<List<String>> candidate = remove(lines, start, run);
+                    if (fails(fileNames, candidate, mode)) {
+                        lines = candidate;
+                        removed = true;
+                    } else {
+                        start += run;
+                    }
+                }
+            }
+        }
+
+        for (List<String> file : lines) {
+            for (int i = 0; i < file.size(); i++) {
+                String line = file.get(i);
+                if (!line.startsWith("push constant ") || line.equals("push constant 0") || line.equals("push constant 1")) {
+                    continue;
+                }
+                for (String smaller : new String[] {"push constant 0", "push constant 1"}) {
+                    file.set(i, smaller);
+                    if (fails(fileNames, lines, mode)) {
+                        break;
+                    }
+                    file.set(i, line);
+                }
+            }
+        }
+
+        return join(fileNames, lines);
+    }
+
+    // Checks if a shrunk program is a valid test that still fails in the mode.
+    private boolean fails(List<String> fileNames, List<List<String>> lines, Mode mode) throws IOException {
+        LinkedHashMap<String, String> program = join(fileNames, lines);
+        VMExecutor reference = execute(program);
+        return reference != null && difference(write(program), reference, mode, false) != null;
+    }
+
+    // Copies the lines of a program without count lines starting from line start, counted across every file.
+    private static List<List<String>> remove(List<List<String>> lines, int start, int count) {
+        List<List<String>> copy = new ArrayList<>();
+        int line = 0;
+        for (List<String> file : lines) {
+            List<String> kept = new ArrayList<>();
+            for (String each : file) {
+                if (line < start || line >= start + count) {
+                    kept.add(each);
+                }
+                line++;
+            }
+            copy.add(kept);
+        }
+        return copy;
+    }
+
+    private static LinkedHashMap<String, String> join(List<String> fileNames, List<List<String>> lines) {
+        LinkedHashMap<String, String> program = new LinkedHashMap<>();
+        for (int i = 0; i < fileNames.size(); i++) {
+            program.put(fileNames.get(i), String.join("\n", lines.get(i)) + "\n");
+        }
+        return program;
+    }
+
+    // Prints a failure and its shrunk program.
+    private static synchronized void report(String name, Mode mode, String difference, Map<String, String> program,
+                                            Map<String, String> smallest, String smallestDifference) {
+        System.out.println("FAILED " + name + " in mode " + mode.option() + ": " + difference + ".");
+        System.out.println("Shrunk from " + commands(program) + " to " + commands(smallest) + " lines, which fails with: "
+                + smallestDifference + ".");
+        for (Map.Entry<String, String> file : smallest.entrySet()) {
+            System.out.println("// " + file.getKey() + ".vm");
+            System.out.print(file.getValue());
+        }
+        System.out.println();
+    }
+
+    private static long commands(Map<String, String> program) {
+        return program.values().stream().mapToLong(source -> source.split("\n").length).sum();
+    }
+
+    // Each thread writes its VM files in its own temporary folder, found through src like any VM file.
+    private Path newWorkspace() {
+        try {
+            Path directory = Files.createTempDirectory("difftest");
+            synchronized (workspaces) {
+                workspaces.add(directory);
+            }
+            return directory;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create a temporary folder.", e);
+        }
+    }
+
+    private void deleteWorkspaces() {
+        for (Path directory : workspaces) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            } catch (IOException e) {
+                // left for the system to clean up.
+            }
+        }
+    }
+
+    // Something RAM can be set on, the reference or a simulator.
+    private interface RamSetter {
+        void poke(int address, int value);
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.Scanner;
+
+/**
+ * This class holds the execution counts recorded by an earlier run of a program, used to guide translation.
+ *
+ * A profile is a text file with one count per line, "//" starts a comment:
+ * function functionName count      - times the function was entered.
+ * block functionName label count   - times the code after "label label" in the function ran.
+ * call functionName n count        - times the n-th call command (counted from 0) in the function ran.
+ * Anything not in the profile is treated as never run.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class ExecutionProfile {
+
+    // private variables and objects
+    private HashMap<String, Long> functions;
+    private HashMap<String, Long> blocks;
+    private HashMap<String, Long> calls;
+
+    private ExecutionProfile() {
+        this.functions = new HashMap<>();
+        this.blocks = new HashMap<>();
+        this.calls = new HashMap<>();
+    }
+
+    /**
+     * Loads a profile from a file.
+     *
+     * pre: pass a profile file, found the same way VM files are.
+     * post: returns the counts in the file.
+     *
+     * @param fileName the profile file.
+     * @return the profile.
+     * @throws IllegalArgumentException if the file can't be found or has a line that can't be read.
+     */
+    public static ExecutionProfile load(String fileName) {
+        ExecutionProfile profile = new ExecutionProfile();
+
+        try (Scanner input = new Scanner(VMTranslator.locate(fileName))) {
+            int lineNumber = 0;
+            while (input.hasNextLine()) {
+                lineNumber++;
+                String line = input.nextLine();
+                if (line.contains("//")) {
+                    line = line.substring(0, line.indexOf("//"));
+                }
+                String[] tokens = line.trim().split("\\s+");
+
+                try {
+                    if (tokens[0].equals("function") && tokens.length == 3) {
+                        profile.functions.merge(tokens[1], Long.parseLong(tokens[2]), Long::sum);
+                    } else if (tokens[0].equals("block") && tokens.length == 4) {
+                        profile.blocks.merge(tokens[1] + " " + tokens[2], Long.parseLong(tokens[3]), Long::sum);
+                    } else if (tokens[0].equals("call") && tokens.length == 4) {
+                        profile.calls.merge(tokens[1] + " " + Integer.parseInt(tokens[2]), Long.parseLong(tokens[3]),
+                                Long::sum);
+                    } else if (!tokens[0].isEmpty()) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad profile line " + lineNumber + " in " + fileName + ".");
+                }
+            }
+        } catch (FileNotFoundException e) {
+            throw new IllegalArgumentException("Unable to locate profile " + fileName + ".");
+        }
+
+        return profile;
+    }
+
+    /**
+     * Gets how many times a function was entered.
+     * @param function the name of the function.
+     * @return the count, 0 if not in the profile.
+     */
+    public long functionCount(String function) {
+        return functions.getOrDefault(function, 0L);
+    }
+
+    /**
+     * Gets how many times a block ran. The block before the function's first label is the function's entry.
+     * @param function the name of the function.
+     * @param label the label starting the block, or null for the function's entry.
+     * @return the count, falling back on the function's count if the block is not in the profile.
+     */
+    public long blockCount(String function, String label) {
+        Long count = label == null ? null : blocks.get(function + " " + label);
+        return count != null ? count : functionCount(function);
+    }
+
+    /**
+     * Gets how many times a call command ran.
+     * @param function the name of the function making the call.
+     * @param ordinal which call command of the function, counted from 0.
+     * @param label the label of the block the call is in, or null for the function's entry.
+     * @return the count, falling back on the block's count if the call is not in the profile.
+     */
+    public long callCount(String function, int ordinal, String label) {
+        Long count = calls.get(function + " " + ordinal);
+        return count != null ? count : blockCount(function, label);
+    }
+}
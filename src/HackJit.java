@@ -0,0 +1,581 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class compiles a Hack ROM into JVM bytecode, so HotSpot runs the program instead of an interpreter.
+ *
+ * The ROM is split into basic blocks, starting at ROM[0], at every label (RETURN_ADDRESS_n, TRUE.n, function
+ * names, ...) and after every jump, and ending at the next start. Each block becomes a static method that keeps
+ * A and D in local variables and returns the address it goes to next, so a jump through A=M is just a return value.
+ * The block dispatch table maps an address to the block starting there. Jumps to an address with no block,
+ * which only happens for computed addresses that aren't labels, are left to HackSimulator's interpreter.
+ *
+ * Blocks are placed in generated classes of up to 4096 blocks, behind a two level tableswitch, keeping every
+ * method small enough for HotSpot to compile. The classes are version 49 so they need no stack map frames.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class HackJit {
+
+    /**
+     * The generated code of some blocks, implemented by every generated class.
+     */
+    public interface Code {
+        /**
+         * Runs one block.
+         * @param block the number of the block.
+         * @param ram the RAM.
+         * @param registers A and D, read when the block starts and written when it ends.
+         * @return the address of the next instruction.
+         */
+        int run(int block, short[] ram, int[] registers);
+    }
+
+    // Register indexes in the registers array.
+    public static final int A = 0;
+    public static final int D = 1;
+
+    // Longest block, keeps the bytecode of each block well under the JVM's 64 KB method limit.
+    private static final int MAX_BLOCK = 256;
+    private static final int GROUP_BITS = 8;
+    private static final int CLASS_BITS = 12;
+    private static final int ADDRESS_MASK = 0x7FFF;
+
+    // private variables and objects
+    private int[] blockAt;
+    private int[] starts;
+    private int[] lengths;
+    private Code[] codes;
+    private long compileNanos;
+
+    /**
+     * Compiles a program.
+     *
+     * pre: rom is an assembled program.
+     * post: every block of the program is compiled and loaded.
+     *
+     * @param rom the program.
+     */
+    public HackJit(HackRom rom) {
+        long start = System.nanoTime();
+
+        // finds where each block starts.
+        List<Integer> blockStarts = new ArrayList<>();
+        int length = 0;
+        for (int pc = 0; pc < rom.size(); pc++) {
+            if (pc == 0 || rom.isLabel(pc) || HackRom.isJump(rom.instruction(pc - 1)) || length == MAX_BLOCK) {
+                blockStarts.add(pc);
+                length = 0;
+            }
+            length++;
+        }
+
+        this.blockAt = new int[rom.size()];
+        this.starts = new int[blockStarts.size()];
+        this.lengths = new int[blockStarts.size()];
+        Arrays.fill(blockAt, -1);
+        for (int block = 0; block < starts.length; block++) {
+            starts[block] = blockStarts.get(block);
+            lengths[block] = (block + 1 < starts.length ? blockStarts.get(block + 1) : rom.size()) - starts[block];
+            blockAt[starts[block]] = block;
+        }
+
+        // compiles each class of blocks, with its own class loader so it goes away with this object.
+        Loader loader = new Loader(HackJit.class.getClassLoader());
+        this.codes = new Code[(starts.length + (1 << CLASS_BITS) - 1) >> CLASS_BITS];
+        for (int i = 0; i < codes.length; i++) {
+            int first = i << CLASS_BITS;
+            int last = Math.min(starts.length, first + (1 << CLASS_BITS));
+            String name = "HackCode" + i;
+            try {
+                codes[i] = (Code) loader.define(name, compileClass(rom, name, first, last))
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new IllegalStateException("Unable to load compiled code: " + e, e);
+            }
+        }
+
+        this.compileNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Gets the block starting at an address, using the block dispatch table.
+     * @param address the address of an instruction.
+     * @return the number of the block, or -1 if no block starts there.
+     */
+    public int blockAt(int address) {
+        return address < blockAt.length ? blockAt[address] : -1;
+    }
+
+    /**
+     * Gets how many instructions a block runs, every block runs all of its instructions.
+     * @param block the number of the block.
+     * @return the length of the block.
+     */
+    public int length(int block) {
+        return lengths[block];
+    }
+
+    /**
+     * Runs one block.
+     *
+     * pre: block is from blockAt, registers holds A and D.
+     * post: updates ram and registers as the block's instructions would.
+     *
+     * @param block the number of the block.
+     * @param ram the RAM.
+     * @param registers A and D.
+     * @return the address of the next instruction.
+     */
+    public int run(int block, short[] ram, int[] registers) {
+        return codes[block >> CLASS_BITS].run(block, ram, registers);
+    }
+
+    /**
+     * Reports how many blocks were compiled, and how long it took.
+     * @return the report.
+     */
+    public String report() {
+        return "Compiled " + starts.length + " blocks into " + codes.length + " classes in "
+                + compileNanos / 1000000 + " ms.";
+    }
+
+    // Writes the class file holding blocks first to last - 1.
+    private byte[] compileClass(HackRom rom, String name, int first, int last) throws IOException {
+        ClassFile file = new ClassFile(name, "HackJit$Code");
+        int firstGroup = first >> GROUP_BITS;
+        int lastGroup = (last - 1) >> GROUP_BITS;
+
+        // constructor, only calls Object's.
+        Bytecode init = new Bytecode();
+        init.op(0x2A);                                                 // aload_0
+        init.op(0xB7).u2(file.method("java/lang/Object", "<init>", "()V"));   // invokespecial
+        init.op(0xB1);                                                 // return
+        file.addMethod(0x0001, "<init>", "()V", init, 1, 1);
+
+        // run, picks the group of the block.
+        Bytecode run = new Bytecode();
+        run.op(0x1B).push(GROUP_BITS).op(0x7A);                        // iload_1, block >> GROUP_BITS
+        int[] cases = run.tableSwitch(firstGroup, lastGroup);
+        for (int group = firstGroup; group <= lastGroup; group++) {
+            run.target(cases, group - firstGroup);
+            run.op(0x1B).op(0x2C).op(0x2D);                            // iload_1, aload_2, aload_3
+            run.op(0xB8).u2(file.method(name, "g" + group, "(I[S[I)I")).op(0xAC);
+        }
+        run.target(cases, cases.length - 1);
+        run.op(0x02).op(0xAC);                                         // return -1
+        file.addMethod(0x0001, "run", "(I[S[I)I", run, 3, 4);
+
+        // one method per group, picks the block.
+        for (int group = firstGroup; group <= lastGroup; group++) {
+            int low = Math.max(first, group << GROUP_BITS);
+            int high = Math.min(last, (group + 1) << GROUP_BITS) - 1;
+            Bytecode dispatch = new Bytecode();
+            dispatch.op(0x1A);                                         // iload_0
+            int[] blocks = dispatch.tableSwitch(low, high);
+            for (int block = low; block <= high; block++) {
+                dispatch.target(blocks, block - low);
+                dispatch.op(0x2B).op(0x2C);                            // aload_1, aload_2
+                dispatch.op(0xB8).u2(file.method(name, "b" + block, "([S[I)I")).op(0xAC);
+            }
+            dispatch.target(blocks, blocks.length - 1);
+            dispatch.op(0x02).op(0xAC);
+            file.addMethod(0x000A, "g" + group, "(I[S[I)I", dispatch, 2, 3);
+        }
+
+        // the blocks themselves.
+        for (int block = first; block < last; block++) {
+            file.addMethod(0x000A, "b" + block, "([S[I)I", compileBlock(rom, starts[block], lengths[block]), 6, 6);
+        }
+
+        return file.toByteArray();
+    }
+
+    /*
+    Compiles one block. Locals: 0 ram, 1 registers, 2 A, 3 D, 4 the computed value, 5 A before the instruction.
+    Values are kept as ints from -32768 to 32767, i2s after anything that can overflow.
+     */
+    private static Bytecode compileBlock(HackRom rom, int start, int length) {
+        Bytecode code = new Bytecode();
+
+        // loads A and D.
+        code.op(0x2B).op(0x03).op(0x2E).op(0x3D);                      // A = registers[0]
+        code.op(0x2B).op(0x04).op(0x2E).op(0x3E);                      // D = registers[1]
+
+        for (int pc = start; pc < start + length; pc++) {
+            int instruction = rom.instruction(pc);
+
+            if (!HackRom.isCompute(instruction)) {
+                code.push(instruction).op(0x3D);                       // istore_2
+                continue;
+            }
+
+            int dest = (instruction >> 3) & 0x7;
+            int jump = instruction & 0x7;
+            compileComp(code, instruction);
+
+            int uses = Integer.bitCount(dest) + (jump != 0 ? 1 : 0);
+            if (uses == 0) {
+                code.op(0x57);                                         // pop
+                continue;
+            }
+            code.op(0x36).u1(4);                                       // istore 4
+
+            // the jump goes to A as it was before this instruction.
+            int target = 2;
+            if (jump != 0 && (dest & 0x4) != 0) {
+                code.op(0x1C).op(0x36).u1(5);
+                target = 5;
+            }
+            if ((dest & 0x1) != 0) {
+                code.op(0x2A);
+                loadAddress(code);
+                code.op(0x15).u1(4).op(0x56);                          // ram[A] = value, sastore
+            }
+            if ((dest & 0x2) != 0) {
+                code.op(0x15).u1(4).op(0x3E);
+            }
+            if ((dest & 0x4) != 0) {
+                code.op(0x15).u1(4).op(0x3D);
+            }
+
+            if (jump == 0x7) {
+                storeRegisters(code);
+                code.op(0x15).u1(target).push(ADDRESS_MASK).op(0x7E).op(0xAC);
+                return code;
+            } else if (jump != 0) {
+                // branches over the taken jump when the condition is false.
+                int[] opposite = {0, 0x9E, 0x9A, 0x9B, 0x9C, 0x99, 0x9D};
+                code.op(0x15).u1(4);
+                int branch = code.position();
+                code.op(opposite[jump]).u2(0);
+                storeRegisters(code);
+                code.op(0x15).u1(target).push(ADDRESS_MASK).op(0x7E).op(0xAC);
+                code.patch(branch + 1, code.position() - branch);
+                storeRegisters(code);
+                code.push(pc + 1).op(0xAC);
+                return code;
+            }
+        }
+
+        // falls through to the next block.
+        storeRegisters(code);
+        code.push(start + length).op(0xAC);
+        return code;
+    }
+
+    // Pushes the value of the comp bits, the common ones directly and any other through the ALU flags.
+    private static void compileComp(Bytecode code, int instruction) {
+        boolean memory = (instruction & 0x1000) != 0;
+        switch ((instruction >> 6) & 0x3F) {
+            case 0x2A:                                                 // 0
+                code.op(0x03);
+                break;
+            case 0x3F:                                                 // 1
+                code.op(0x04);
+                break;
+            case 0x3A:                                                 // -1
+                code.op(0x02);
+                break;
+            case 0x0C:                                                 // D
+                code.op(0x1D);
+                break;
+            case 0x30:                                                 // A, M
+                loadY(code, memory);
+                break;
+            case 0x0D:                                                 // !D
+                code.op(0x1D).op(0x02).op(0x82);
+                break;
+            case 0x31:                                                 // !A, !M
+                loadY(code, memory);
+                code.op(0x02).op(0x82);
+                break;
+            case 0x0F:                                                 // -D
+                code.op(0x1D).op(0x74).op(0x93);
+                break;
+            case 0x33:                                                 // -A, -M
+                loadY(code, memory);
+                code.op(0x74).op(0x93);
+                break;
+            case 0x1F:                                                 // D+1
+                code.op(0x1D).op(0x04).op(0x60).op(0x93);
+                break;
+            case 0x37:                                                 // A+1, M+1
+                loadY(code, memory);
+                code.op(0x04).op(0x60).op(0x93);
+                break;
+            case 0x0E:                                                 // D-1
+                code.op(0x1D).op(0x04).op(0x64).op(0x93);
+                break;
+            case 0x32:                                                 // A-1, M-1
+                loadY(code, memory);
+                code.op(0x04).op(0x64).op(0x93);
+                break;
+            case 0x02:                                                 // D+A, D+M
+                code.op(0x1D);
+                loadY(code, memory);
+                code.op(0x60).op(0x93);
+                break;
+            case 0x13:                                                 // D-A, D-M
+                code.op(0x1D);
+                loadY(code, memory);
+                code.op(0x64).op(0x93);
+                break;
+            case 0x07:                                                 // A-D, M-D
+                loadY(code, memory);
+                code.op(0x1D).op(0x64).op(0x93);
+                break;
+            case 0x00:                                                 // D&A, D&M
+                code.op(0x1D);
+                loadY(code, memory);
+                code.op(0x7E);
+                break;
+            case 0x15:                                                 // D|A, D|M
+                code.op(0x1D);
+                loadY(code, memory);
+                code.op(0x80);
+                break;
+            default:
+                // zx, nx, zy, ny, f, no, as the ALU works.
+                code.op((instruction & 0x800) != 0 ? 0x03 : 0x1D);
+                if ((instruction & 0x400) != 0) {
+                    code.op(0x02).op(0x82);
+                }
+                if ((instruction & 0x200) != 0) {
+                    code.op(0x03);
+                } else {
+                    loadY(code, memory);
+                }
+                if ((instruction & 0x100) != 0) {
+                    code.op(0x02).op(0x82);
+                }
+                code.op((instruction & 0x80) != 0 ? 0x60 : 0x7E);
+                if ((instruction & 0x40) != 0) {
+                    code.op(0x02).op(0x82);
+                }
+                code.op(0x93);
+                break;
+        }
+    }
+
+    // Pushes A, or M = ram[A].
+    private static void loadY(Bytecode code, boolean memory) {
+        if (memory) {
+            code.op(0x2A);
+            loadAddress(code);
+            code.op(0x35);                                             // saload
+        } else {
+            code.op(0x1C);
+        }
+    }
+
+    // Pushes A as an address.
+    private static void loadAddress(Bytecode code) {
+        code.op(0x1C).push(ADDRESS_MASK).op(0x7E);
+    }
+
+    // Writes A and D back to the registers array.
+    private static void storeRegisters(Bytecode code) {
+        code.op(0x2B).op(0x03).op(0x1C).op(0x4F);                      // registers[0] = A
+        code.op(0x2B).op(0x04).op(0x1D).op(0x4F);                      // registers[1] = D
+    }
+
+    // Defines the generated classes.
+    private static class Loader extends ClassLoader {
+        private Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // The code of one method being written.
+    private static class Bytecode {
+        private byte[] bytes = new byte[256];
+        private int size;
+        private int tableStart;
+
+        private Bytecode op(int opcode) {
+            return u1(opcode);
+        }
+
+        private Bytecode u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        private Bytecode u2(int value) {
+            return u1(value >> 8).u1(value);
+        }
+
+        private Bytecode u4(int value) {
+            return u2(value >> 16).u2(value);
+        }
+
+        // Pushes an int constant, only the end of a full ROM, 32768, is past sipush.
+        private Bytecode push(int value) {
+            if (value >= -1 && value <= 5) {
+                return op(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                return op(0x10).u1(value);
+            } else if (value > Short.MAX_VALUE) {
+                return push(Short.MAX_VALUE).push(value - Short.MAX_VALUE).op(0x60);
+            }
+            return op(0x11).u2(value);
+        }
+
+        private int position() {
+            return size;
+        }
+
+        private void patch(int at, int value) {
+            bytes[at] = (byte) (value >> 8);
+            bytes[at + 1] = (byte) value;
+        }
+
+        /*
+        Writes a tableswitch for low to high, returns where each case's offset goes, the default last.
+        Offsets are filled in by target as each case is written, before the next tableswitch.
+         */
+        private int[] tableSwitch(int low, int high) {
+            int opcode = size;
+            op(0xAA);
+            while (size % 4 != 0) {
+                u1(0);
+            }
+            int[] offsets = new int[high - low + 2];
+            offsets[offsets.length - 1] = size;
+            u4(0).u4(low).u4(high);
+            for (int i = 0; i < offsets.length - 1; i++) {
+                offsets[i] = size;
+                u4(0);
+            }
+            tableStart = opcode;
+            return offsets;
+        }
+
+        private void target(int[] offsets, int index) {
+            int offset = size - tableStart;
+            int at = offsets[index];
+            bytes[at] = (byte) (offset >> 24);
+            bytes[at + 1] = (byte) (offset >> 16);
+            bytes[at + 2] = (byte) (offset >> 8);
+            bytes[at + 3] = (byte) offset;
+        }
+    }
+
+    // A class file being written, with its constant pool.
+    private static class ClassFile {
+        private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private DataOutputStream poolOutput = new DataOutputStream(pool);
+        private HashMap<String, Integer> constants = new HashMap<>();
+        private int poolSize = 1;
+        private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        private DataOutputStream methodOutput = new DataOutputStream(methods);
+        private int methodCount;
+        private int thisClass;
+        private int superClass;
+        private int interfaceClass;
+
+        private ClassFile(String name, String interfaceName) throws IOException {
+            this.thisClass = classRef(name);
+            this.superClass = classRef("java/lang/Object");
+            this.interfaceClass = classRef(interfaceName);
+        }
+
+        private int utf8(String value) throws IOException {
+            Integer index = constants.get("U" + value);
+            if (index == null) {
+                poolOutput.writeByte(1);
+                poolOutput.writeUTF(value);
+                index = poolSize++;
+                constants.put("U" + value, index);
+            }
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            Integer index = constants.get("C" + name);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                poolOutput.writeByte(7);
+                poolOutput.writeShort(nameIndex);
+                index = poolSize++;
+                constants.put("C" + name, index);
+            }
+            return index;
+        }
+
+        private int method(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = constants.get(key);
+            if (index == null) {
+                int ownerIndex = classRef(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                poolOutput.writeByte(12);
+                poolOutput.writeShort(nameIndex);
+                poolOutput.writeShort(descriptorIndex);
+                int nameAndType = poolSize++;
+                poolOutput.writeByte(10);
+                poolOutput.writeShort(ownerIndex);
+                poolOutput.writeShort(nameAndType);
+                index = poolSize++;
+                constants.put(key, index);
+            }
+            return index;
+        }
+
+        private void addMethod(int access, String name, String descriptor, Bytecode code, int maxStack, int maxLocals)
+                throws IOException {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int codeIndex = utf8("Code");
+            methodOutput.writeShort(access);
+            methodOutput.writeShort(nameIndex);
+            methodOutput.writeShort(descriptorIndex);
+            methodOutput.writeShort(1);
+            methodOutput.writeShort(codeIndex);
+            methodOutput.writeInt(12 + code.size);
+            methodOutput.writeShort(maxStack);
+            methodOutput.writeShort(maxLocals);
+            methodOutput.writeInt(code.size);
+            methodOutput.write(code.bytes, 0, code.size);
+            methodOutput.writeShort(0);
+            methodOutput.writeShort(0);
+            methodCount++;
+        }
+
+        private byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(0xCAFEBABE);
+            output.writeShort(0);
+            output.writeShort(49);
+            output.writeShort(poolSize);
+            pool.writeTo(output);
+            output.writeShort(0x0021);
+            output.writeShort(thisClass);
+            output.writeShort(superClass);
+            output.writeShort(1);
+            output.writeShort(interfaceClass);
+            output.writeShort(0);
+            output.writeShort(methodCount);
+            methods.writeTo(output);
+            output.writeShort(0);
+            output.flush();
+            return bytes.toByteArray();
+        }
+    }
+}
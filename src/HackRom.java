@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class assembles ASM code into the Hack ROM, and keeps what the simulators need to know about it.
+ *
+ * Works like the Hack assembler: labels take the address of the next instruction, other symbols are
+ * variables placed from RAM[16] in the order they are first used. Besides the machine code it keeps
+ * which addresses have a label, the only places a jump through a symbol can land.
+ * An address halts the program if it starts an ending loop, "(L) @L 0;JMP", like END.ALL.LOOP.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class HackRom {
+
+    // Hack ROM holds 32K instructions.
+    public static final int ROM_SIZE = 32768;
+
+    // First address given to variables.
+    private static final int FIRST_VARIABLE = 16;
+
+    // comp mnemonic -> a and c1 - c6 bits.
+    private static final HashMap<String, Integer> COMP = new HashMap<>();
+    private static final HashMap<String, Integer> JUMP = new HashMap<>();
+    private static final HashMap<String, Integer> PREDEFINED = new HashMap<>();
+
+    static {
+        String[] comps = {"0", "101010", "1", "111111", "-1", "111010", "D", "001100", "A", "110000", "!D", "001101",
+                "!A", "110001", "-D", "001111", "-A", "110011", "D+1", "011111", "A+1", "110111", "D-1", "001110",
+                "A-1", "110010", "D+A", "000010", "D-A", "010011", "A-D", "000111", "D&A", "000000", "D|A", "010101"};
+        for (int i = 0; i < comps.length; i += 2) {
+            int bits = Integer.parseInt(comps[i + 1], 2);
+            COMP.put(comps[i], bits);
+            if (comps[i].contains("A")) {
+                COMP.put(comps[i].replace('A', 'M'), bits | 0x40);
+            }
+        }
+        // CodeWriter writes both orders of +, & and |, ex: "D=M+D".
+        for (String comp : new ArrayList<>(COMP.keySet())) {
+            if (comp.length() == 3 && "+&|".indexOf(comp.charAt(1)) >= 0 && comp.charAt(0) != comp.charAt(2)
+                    && comp.charAt(2) != '1') {
+                COMP.put("" + comp.charAt(2) + comp.charAt(1) + comp.charAt(0), COMP.get(comp));
+            }
+        }
+
+        String[] jumps = {"JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for (int i = 0; i < jumps.length; i++) {
+            JUMP.put(jumps[i], i + 1);
+        }
+
+        String[] pointers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+        for (int i = 0; i < pointers.length; i++) {
+            PREDEFINED.put(pointers[i], i);
+        }
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+    }
+
+    // private variables and objects
+    private int[] instructions;
+    private boolean[] labels;
+    private boolean[] halts;
+    private HashMap<String, Integer> symbols;
+
+    private HackRom(int[] instructions, boolean[] labels, HashMap<String, Integer> symbols) {
+        this.instructions = instructions;
+        this.labels = labels;
+        this.symbols = symbols;
+        this.halts = new boolean[instructions.length];
+
+        for (int pc = 0; pc + 1 < instructions.length; pc++) {
+            int next = instructions[pc + 1];
+            halts[pc] = instructions[pc] == pc && isCompute(next) && (next & 0x38) == 0 && (next & 0x7) == 0x7;
+        }
+    }
+
+    /**
+     * Assembles the ASM code of a program.
+     *
+     * pre: lines are the complete ASM code of a program, starting at ROM[0].
+     * post: returns the machine code of the program.
+     *
+     * @param lines the lines of ASM code.
+     * @return the ROM of the program.
+     * @throws IllegalArgumentException if a line isn't valid ASM code, or the program doesn't fit in ROM.
+     */
+    public static HackRom assemble(List<String> lines) {
+        HashMap<String, Integer> symbols = new HashMap<>(PREDEFINED);
+        List<String> code = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+        List<Integer> labelAddresses = new ArrayList<>();
+
+        // first pass, places the labels.
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.contains("//")) {
+                line = line.substring(0, line.indexOf("//"));
+            }
+            line = removeSpaces(line);
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith("(") && line.endsWith(")")) {
+                symbols.put(line.substring(1, line.length() - 1), code.size());
+                labelAddresses.add(code.size());
+            } else {
+                code.add(line);
+                lineNumbers.add(i + 1);
+            }
+        }
+
+        if (code.size() > ROM_SIZE) {
+            throw new IllegalArgumentException("Program has " + code.size() + " instructions, over the ROM size of "
+                    + ROM_SIZE + ".");
+        }
+
+        // second pass, writes the machine code.
+        int[] instructions = new int[code.size()];
+        int nextVariable = FIRST_VARIABLE;
+        for (int pc = 0; pc < instructions.length; pc++) {
+            String line = code.get(pc);
+            try {
+                if (line.startsWith("@")) {
+                    String symbol = line.substring(1);
+                    int value;
+                    if (Character.isDigit(symbol.charAt(0))) {
+                        value = Integer.parseInt(symbol);
+                    } else {
+                        if (!symbols.containsKey(symbol)) {
+                            symbols.put(symbol, nextVariable++);
+                        }
+                        value = symbols.get(symbol);
+                    }
+                    if (value > 0x7FFF) {
+                        throw new NumberFormatException();
+                    }
+                    instructions[pc] = value;
+                } else {
+                    instructions[pc] = compute(line);
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Bad instruction \"" + line + "\" on line " + lineNumbers.get(pc) + ".");
+            }
+        }
+
+        boolean[] labels = new boolean[instructions.length];
+        for (int address : labelAddresses) {
+            if (address < labels.length) {
+                labels[address] = true;
+            }
+        }
+
+        return new HackRom(instructions, labels, symbols);
+    }
+
+    /**
+     * Assembles an ASM file, found the same way VM files are.
+     *
+     * pre: pass an ASM file that can be found.
+     * post: returns the machine code of the program in the file.
+     *
+     * @param fileName the ASM file.
+     * @return the ROM of the program.
+     * @throws IllegalArgumentException if the file can't be found or isn't valid ASM code.
+     */
+    public static HackRom load(String fileName) {
+        try {
+            return assemble(Files.readAllLines(VMTranslator.locate(fileName).toPath(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to locate " + fileName + ".");
+        }
+    }
+
+    /**
+     * Assembles the ASM code of a program held in memory, as written by CodeWriter.
+     * @param asm the ASM code.
+     * @return the ROM of the program.
+     * @throws IllegalArgumentException if the code isn't valid ASM code.
+     */
+    public static HackRom assemble(byte[] asm) {
+        return assemble(Arrays.asList(new String(asm, StandardCharsets.UTF_8).split("\n")));
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many instructions the program has.
+     * @return the size of the program.
+     */
+    public int size() {
+        return instructions.length;
+    }
+
+    /**
+     * Gets the machine code of one instruction.
+     * @param address the address of the instruction, less than size().
+     * @return the instruction, from 0 to 65535.
+     */
+    public int instruction(int address) {
+        return instructions[address];
+    }
+
+    /**
+     * Checks if a label is placed at an address.
+     * @param address the address of an instruction, less than size().
+     * @return true if the address has a label.
+     */
+    public boolean isLabel(int address) {
+        return labels[address];
+    }
+
+    /**
+     * Checks if an address starts an ending loop, where the program stays forever without changing anything.
+     * @param address the address of an instruction, less than size().
+     * @return true if reaching the address ends the program.
+     */
+    public boolean halts(int address) {
+        return halts[address];
+    }
+
+    /**
+     * Gets the address of a symbol, ex: "Main.0" for static variable 0 of Main.vm.
+     * @param symbol the label or variable.
+     * @return the address the assembler gave it, or -1 if the program never uses it.
+     */
+    public int address(String symbol) {
+        return symbols.getOrDefault(symbol, -1);
+    }
+
+    /**
+     * Checks if an instruction is a C-instruction, rather than an A-instruction.
+     * @param instruction the machine code of the instruction.
+     * @return true for a C-instruction.
+     */
+    public static boolean isCompute(int instruction) {
+        return (instruction & 0x8000) != 0;
+    }
+
+    /**
+     * Checks if an instruction may jump.
+     * @param instruction the machine code of the instruction.
+     * @return true for a C-instruction with any jump bits set.
+     */
+    public static boolean isJump(int instruction) {
+        return isCompute(instruction) && (instruction & 0x7) != 0;
+    }
+
+    // Removes every space and tab, most lines written by CodeWriter have none.
+    private static String removeSpaces(String line) {
+        StringBuilder kept = null;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (kept == null) {
+                    kept = new StringBuilder(line.substring(0, i));
+                }
+            } else if (kept != null) {
+                kept.append(c);
+            }
+        }
+        return kept == null ? line : kept.toString();
+    }
+
+    // Assembles a C-instruction, dest=comp;jump.
+    private static int compute(String line) {
+        int dest = 0;
+        int jump = 0;
+
+        if (line.contains(";")) {
+            jump = JUMP.get(line.substring(line.indexOf(';') + 1));
+            line = line.substring(0, line.indexOf(';'));
+        }
+        if (line.contains("=")) {
+            for (char register : line.substring(0, line.indexOf('=')).toCharArray()) {
+                dest |= register == 'A' ? 0x4 : register == 'D' ? 0x2 : register == 'M' ? 0x1 : -1;
+            }
+            if (dest < 0) {
+                throw new IllegalArgumentException();
+            }
+            line = line.substring(line.indexOf('=') + 1);
+        }
+
+        return 0xE000 | COMP.get(line) << 6 | dest << 3 | jump;
+    }
+}
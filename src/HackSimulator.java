@@ -0,0 +1,298 @@
+/**
+ * This class runs an assembled Hack program, to check what the translated ASM code does.
+ *
+ * The interpreter runs one instruction at a time through the ALU's zx, nx, zy, ny, f and no bits, like the CPU.
+ * With a HackJit, every block the JIT compiled runs as JVM bytecode instead, and the interpreter only runs
+ * instructions it jumps into the middle of. Both stop at an ending loop, see HackRom.halts, after running off the
+ * end of the program, or when the cycle limit is reached, so they leave the same RAM.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class HackSimulator {
+
+    // RAM holds 32K words, A is masked to 15 bits as an address.
+    public static final int RAM_SIZE = 32768;
+    private static final int ADDRESS_MASK = 0x7FFF;
+
+    // Default cycle limit, for programs without an ending loop.
+    public static final long DEFAULT_CYCLES = 1000000000L;
+
+    // private variables and objects
+    private HackRom rom;
+    private HackJit jit;
+    private short[] ram;
+    private int[] registers;
+    private int pc;
+    private long cycles;
+    private boolean halted;
+
+    /**
+     * Used for creating a new HackSimulator type object, with RAM cleared.
+     *
+     * pre: rom is an assembled program.
+     * post: ready to run from ROM[0].
+     *
+     * @param rom the program.
+     * @param jit the compiled program, or null to only interpret.
+     */
+    public HackSimulator(HackRom rom, HackJit jit) {
+        this.rom = rom;
+        this.jit = jit;
+        this.ram = new short[RAM_SIZE];
+        this.registers = new int[2];
+        this.pc = 0;
+        this.cycles = 0;
+        this.halted = false;
+    }
+
+    /*
+    Projects main method.
+
+    Usage: HackSimulator [--jit | --compare] [--cycles n] [--ram address=value ...] [--dump from-to] file.asm
+    Assembles the ASM file and runs it with RAM set by --ram, then prints RAM[from] - RAM[to] (RAM[0] - RAM[15] by default).
+    With --jit, runs the program as JVM bytecode, see HackJit.
+    With --compare, runs the program both ways and checks they leave the same RAM, exits with status 1 if they don't.
+     */
+    public static void main(String[] args) {
+        String fileRead = null;
+        boolean compile = false;
+        boolean compare = false;
+        long maxCycles = DEFAULT_CYCLES;
+        int[] settings = new int[RAM_SIZE];
+        boolean[] set = new boolean[RAM_SIZE];
+        int dumpFrom = 0;
+        int dumpTo = 15;
+
+        // reads the command line options.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--jit":
+                        compile = true;
+                        break;
+                    case "--compare":
+                        compare = true;
+                        break;
+                    case "--cycles":
+                        maxCycles = Long.parseLong(args[++i]);
+                        break;
+                    case "--ram":
+                        String[] setting = args[++i].split("=");
+                        int address = Integer.parseInt(setting[0]);
+                        settings[address] = Integer.parseInt(setting[1]);
+                        set[address] = true;
+                        break;
+                    case "--dump":
+                        String[] range = args[++i].split("-");
+                        dumpFrom = Integer.parseInt(range[0]);
+                        dumpTo = Integer.parseInt(range[range.length - 1]);
+                        break;
+                    default:
+                        fileRead = args[i];
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Unable to read the options. Exiting program.");
+            System.exit(0);
+        }
+        if (fileRead == null) {
+            System.out.println("Please give the ASM file to run. Exiting program.");
+            System.exit(0);
+        }
+
+        HackRom rom = null;
+        try {
+            rom = HackRom.load(fileRead);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage() + " Exiting program.");
+            System.exit(0);
+        }
+
+        HackSimulator simulator = new HackSimulator(rom, compile || compare ? new HackJit(rom) : null);
+        HackSimulator interpreter = compare ? new HackSimulator(rom, null) : null;
+        for (int address = 0; address < RAM_SIZE; address++) {
+            if (set[address]) {
+                simulator.poke(address, settings[address]);
+                if (interpreter != null) {
+                    interpreter.poke(address, settings[address]);
+                }
+            }
+        }
+
+        if (simulator.jit != null) {
+            System.out.println(simulator.jit.report());
+        }
+        long start = System.nanoTime();
+        simulator.run(maxCycles);
+        System.out.println(simulator.report(System.nanoTime() - start));
+
+        if (interpreter != null) {
+            start = System.nanoTime();
+            interpreter.run(maxCycles);
+            System.out.println("Interpreter: " + interpreter.report(System.nanoTime() - start));
+
+            String difference = simulator.difference(interpreter);
+            if (difference != null) {
+                System.out.println("Compiled and interpreted runs differ: " + difference);
+                System.exit(1);
+            }
+            System.out.println("Compiled and interpreted runs left the same RAM.");
+        }
+
+        for (int address = dumpFrom; address <= dumpTo && address < RAM_SIZE; address++) {
+            System.out.println("RAM[" + address + "] = " + simulator.peek(address));
+        }
+    }
+
+    /**
+     * Runs the program until it halts or the cycle limit is reached.
+     *
+     * pre: none.
+     * post: RAM, A, D and the program counter are left as the program left them.
+     *
+     * @param maxCycles the cycle limit, counted from the start of the program.
+     * @return true if the program halted.
+     */
+    public boolean run(long maxCycles) {
+        while (cycles < maxCycles) {
+            if (pc >= rom.size() || rom.halts(pc)) {
+                halted = true;
+                break;
+            }
+
+            // a whole block at once, if it doesn't go past the cycle limit.
+            if (jit != null) {
+                int block = jit.blockAt(pc);
+                if (block >= 0 && cycles + jit.length(block) <= maxCycles) {
+                    pc = jit.run(block, ram, registers);
+                    cycles += jit.length(block);
+                    continue;
+                }
+            }
+
+            step();
+        }
+
+        return halted;
+    }
+
+    /**
+     * Runs one instruction with the interpreter.
+     * pre: the program counter is inside the program.
+     * post: RAM, A, D and the program counter are updated, one more cycle is counted.
+     */
+    public void step() {
+        int instruction = rom.instruction(pc);
+        cycles++;
+
+        if (!HackRom.isCompute(instruction)) {
+            registers[HackJit.A] = instruction;
+            pc++;
+            return;
+        }
+
+        int a = registers[HackJit.A];
+        int x = registers[HackJit.D];
+        int y = (instruction & 0x1000) != 0 ? ram[a & ADDRESS_MASK] : a;
+
+        // the ALU.
+        if ((instruction & 0x800) != 0) {
+            x = 0;
+        }
+        if ((instruction & 0x400) != 0) {
+            x = ~x;
+        }
+        if ((instruction & 0x200) != 0) {
+            y = 0;
+        }
+        if ((instruction & 0x100) != 0) {
+            y = ~y;
+        }
+        int out = (instruction & 0x80) != 0 ? x + y : x & y;
+        if ((instruction & 0x40) != 0) {
+            out = ~out;
+        }
+        out = (short) out;
+
+        // M is written at A as it was before this instruction.
+        if ((instruction & 0x8) != 0) {
+            ram[a & ADDRESS_MASK] = (short) out;
+        }
+        if ((instruction & 0x10) != 0) {
+            registers[HackJit.D] = out;
+        }
+        if ((instruction & 0x20) != 0) {
+            registers[HackJit.A] = out;
+        }
+
+        boolean jump = (instruction & 0x4) != 0 && out < 0 || (instruction & 0x2) != 0 && out == 0
+                || (instruction & 0x1) != 0 && out > 0;
+        pc = jump ? a & ADDRESS_MASK : pc + 1;
+    }
+
+    /**
+     * Sets a word of RAM, ex: the stack and segment pointers before running a translated function.
+     * @param address the address, from 0 to 32767.
+     * @param value the value, kept to 16 bits.
+     */
+    public void poke(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    /**
+     * Gets a word of RAM.
+     * @param address the address, from 0 to 32767.
+     * @return the value, from -32768 to 32767.
+     */
+    public int peek(int address) {
+        return ram[address];
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many instructions have run.
+     * @return the cycles variable.
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * pre: none.
+     * post: returns if the program reached an ending loop or the end of the program.
+     * @return the halted variable.
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Finds the first difference between the state of two simulators.
+     * @param other the other simulator.
+     * @return a description of the difference, or null if RAM, A, D, the program counter and cycles are all the same.
+     */
+    public String difference(HackSimulator other) {
+        for (int address = 0; address < RAM_SIZE; address++) {
+            if (ram[address] != other.ram[address]) {
+                return "RAM[" + address + "] is " + ram[address] + " and " + other.ram[address] + ".";
+            }
+        }
+        if (registers[HackJit.A] != other.registers[HackJit.A] || registers[HackJit.D] != other.registers[HackJit.D]) {
+            return "A and D are " + registers[HackJit.A] + ", " + registers[HackJit.D] + " and "
+                    + other.registers[HackJit.A] + ", " + other.registers[HackJit.D] + ".";
+        }
+        if (pc != other.pc || cycles != other.cycles) {
+            return "stopped at ROM[" + pc + "] after " + cycles + " cycles and at ROM[" + other.pc + "] after "
+                    + other.cycles + " cycles.";
+        }
+        return null;
+    }
+
+    // Reports how the run ended.
+    private String report(long nanos) {
+        return (halted ? "Halted" : "Stopped at the cycle limit") + " at ROM[" + pc + "] after " + cycles + " cycles in "
+                + nanos / 1000000 + " ms (" + (nanos > 0 ? cycles * 1000 / nanos : 0) + " million cycles per second).";
+    }
+}
@@ -1,4 +1,4 @@
-(NestedCall.asm.Sys.init)
+(Sys.init)
 @SP
 D=M
 @LCL
@@ -26,7 +26,7 @@ D=M
 @THAT
 M=D
 @SP
-D=M-1
+D=M
 @15
 M=D
 // call Sys.main with 0
@@ -64,7 +64,7 @@ M=D
 D=M
 @ARG
 M=D
-@NestedCall.asm.Sys.main
+@Sys.main
 0;JMP
 (RETURN_ADDRESS_0)
 @SP
@@ -76,7 +76,7 @@ M=D
 (LOOP)
 @LOOP
 0;JMP
-(NestedCall.asm.Sys.main)
+(Sys.main)
 @SP
 D=M
 @LCL
@@ -211,7 +211,7 @@ M=D
 D=M
 @ARG
 M=D
-@NestedCall.asm.Sys.add12
+@Sys.add12
 0;JMP
 (RETURN_ADDRESS_1)
 @SP
@@ -296,18 +296,6 @@ D=M+D
 M=D
 @SP
 M=M+1
-@SP
-AM=M-1
-D=M
-@ARG
-A=M
-M=D
-@ARG
-A=M
-A=A+1
-D=A
-@15
-M=D
 @LCL
 A=M
 A=A-1
@@ -318,8 +306,14 @@ A=A-1
 D=M
 @14
 M=D
-@15
+@SP
+AM=M-1
 D=M
+@ARG
+A=M
+M=D
+@ARG
+D=M+1
 @SP
 M=D
 @LCL
@@ -355,7 +349,7 @@ M=D
 @14
 A=M
 0;JMP
-(NestedCall.asm.Sys.add12)
+(Sys.add12)
 @SP
 D=M
 @LCL
@@ -404,18 +398,6 @@ D=M+D
 M=D
 @SP
 M=M+1
-@SP
-AM=M-1
-D=M
-@ARG
-A=M
-M=D
-@ARG
-A=M
-A=A+1
-D=A
-@15
-M=D
 @LCL
 A=M
 A=A-1
@@ -426,8 +408,14 @@ A=A-1
 D=M
 @14
 M=D
-@15
+@SP
+AM=M-1
 D=M
+@ARG
+A=M
+M=D
+@ARG
+D=M+1
 @SP
 M=D
 @LCL
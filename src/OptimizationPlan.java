@@ -0,0 +1,307 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This class decides, from an execution profile, which commands get fast inline ASM code and which share a subroutine.
+ *
+ * Sites are the commands with two translations, numbered in order inside each VM file:
+ * call - inline saves the frame itself, shared passes the function, argument count and return address to $CALL.
+ * return - inline restores the frame itself, shared jumps to $RETURN.
+ * eq, gt, lt - inline compares and pushes itself, shared passes the return address to $EQ, $GT or $LT.
+ * Every site starts shared (smallest), then the most run sites are made inline while the program stays within
+ * the ROM budget. What a site adds is measured from its own command, as gt and lt take more than eq. Sites that
+ * never ran stay shared.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class OptimizationPlan {
+
+    // Hack ROM holds 32K instructions.
+    public static final int ROM_SIZE = 32768;
+
+    /**
+     * The kinds of site with an inline and a shared translation.
+     */
+    public enum Site {
+        CALL,
+        RETURN,
+        COMPARE
+    }
+
+    // private variables and objects
+    // fileName -> inline or not for each site of the file, in order.
+    private HashMap<String, boolean[]> inline;
+    private boolean[] shared;
+    private boolean fallback;
+    private int inlineSites;
+    private int totalSites;
+    private int size;
+
+    // Plan where every site is fallback, used for measuring.
+    private OptimizationPlan(boolean fallback) {
+        this.inline = new HashMap<>();
+        this.shared = new boolean[Site.values().length];
+        this.fallback = fallback;
+        this.shared[Site.CALL.ordinal()] = !fallback;
+        this.shared[Site.RETURN.ordinal()] = !fallback;
+        this.shared[Site.COMPARE.ordinal()] = !fallback;
+    }
+
+    /**
+     * Works out the plan of a whole program.
+     *
+     * pre: every VM file can be found.
+     * post: returns which sites are inline.
+     *
+     * @param filesRead the VM files of the program, in the order they are placed in the ASM file.
+     * @param profile the execution counts of an earlier run.
+     * @param romBudget the most instructions the program may take up.
+     * @return the plan of the program.
+     * @throws IllegalStateException if the program doesn't fit in the budget even with every site shared.
+     */
+    public static OptimizationPlan plan(List<String> filesRead, ExecutionProfile profile, int romBudget) {
+        OptimizationPlan plan = new OptimizationPlan(false);
+        List<Candidate> candidates = new ArrayList<>();
+        // command -> how many more instructions it takes inline than shared, ex: "call 2", "gt".
+        Map<String, Integer> extras = new HashMap<>();
+
+        // finds every site and how often it ran.
+        for (String fileRead : filesRead) {
+            String fileName = VMTranslator.baseName(fileRead);
+            Parser parser = new Parser(fileRead);
+            String function = null;
+            String label = null;
+            int calls = 0;
+            int sites = 0;
+
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                if (parser.getCommandType() == null) {
+                    continue;
+                }
+
+                switch (parser.getCommandType()) {
+                    case C_FUNCTION:
+                        function = parser.getArg1();
+                        label = null;
+                        calls = 0;
+                        break;
+                    case C_LABEL:
+                        label = parser.getArg1();
+                        break;
+                    case C_CALL:
+                        int numArgs = parser.getArg2();
+                        candidates.add(new Candidate(fileName, sites++, Site.CALL,
+                                profile.callCount(function, calls++, label), extras.computeIfAbsent("call " + numArgs,
+                                        command -> inlineExtra(writer -> writer.writeCall("f", numArgs)))));
+                        break;
+                    case C_RETURN:
+                        candidates.add(new Candidate(fileName, sites++, Site.RETURN,
+                                profile.blockCount(function, label),
+                                extras.computeIfAbsent("return", command -> inlineExtra(CodeWriter::writeReturn))));
+                        break;
+                    case C_ARITHMETIC:
+                        if (isComparison(parser.getArg1())) {
+                            candidates.add(new Candidate(fileName, sites++, Site.COMPARE,
+                                    profile.blockCount(function, label), extras.computeIfAbsent(parser.getArg1(),
+                                            command -> inlineExtra(writer -> writer.writeArithmetic(command)))));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            plan.inline.put(fileName, new boolean[sites]);
+            plan.totalSites += sites;
+        }
+
+        // only the subroutines of kinds the program has are written.
+        for (Site site : Site.values()) {
+            plan.shared[site.ordinal()] = false;
+        }
+        for (Candidate candidate : candidates) {
+            plan.shared[candidate.site.ordinal()] = true;
+        }
+
+        // size with every site shared.
+        plan.size = measure(writer -> VMTranslator.translateFiles(filesRead, writer, null), plan);
+        if (plan.size > romBudget) {
+            throw new IllegalStateException("Program needs " + plan.size + " instructions with every site shared, over the ROM budget of "
+                    + romBudget + ".");
+        }
+
+        // most run sites first, then the cheapest to make inline.
+        candidates.sort((a, b) -> a.count != b.count ? Long.compare(b.count, a.count)
+                : Integer.compare(a.extra, b.extra));
+        int[] sharedLeft = new int[Site.values().length];
+        for (Candidate candidate : candidates) {
+            sharedLeft[candidate.site.ordinal()]++;
+        }
+
+        List<Candidate> inlined = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.count > 0 && plan.size + candidate.extra <= romBudget) {
+                plan.inline.get(candidate.fileName)[candidate.index] = true;
+                plan.size += candidate.extra;
+                plan.inlineSites++;
+                sharedLeft[candidate.site.ordinal()]--;
+                inlined.add(candidate);
+            }
+        }
+
+        // a subroutine no site uses anymore is left out.
+        for (Site site : Site.values()) {
+            plan.shared[site.ordinal()] = sharedLeft[site.ordinal()] > 0;
+        }
+        plan.size = measure(writer -> VMTranslator.translateFiles(filesRead, writer, null), plan);
+
+        // the measured size is the one kept within the budget: the least run inline sites go back to shared until
+        // it fits. With every site shared it fit above.
+        while (plan.size > romBudget && !inlined.isEmpty()) {
+            for (int over = plan.size - romBudget; over > 0 && !inlined.isEmpty(); ) {
+                Candidate candidate = inlined.remove(inlined.size() - 1);
+                plan.inline.get(candidate.fileName)[candidate.index] = false;
+                plan.inlineSites--;
+                plan.shared[candidate.site.ordinal()] = true;
+                over -= candidate.extra;
+            }
+            plan.size = measure(writer -> VMTranslator.translateFiles(filesRead, writer, null), plan);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Checks if a site gets inline ASM code.
+     * @param fileName the name of the VM file, as given to CodeWriter.setFileName.
+     * @param index the number of the site in the VM file, counted from 0.
+     * @return true for inline, false for the shared subroutine.
+     */
+    public boolean isInline(String fileName, int index) {
+        boolean[] sites = inline.get(fileName);
+        return sites == null || index >= sites.length ? fallback : sites[index];
+    }
+
+    /**
+     * Makes a copy of the plan where one VM file goes by another name, ex: TranslationCache.FILE_MARK.
+     * @param fileName the name of the VM file in this plan.
+     * @param name the name the copy knows the file by.
+     * @return the copy, with the same shared subroutines.
+     */
+    public OptimizationPlan rename(String fileName, String name) {
+        OptimizationPlan copy = new OptimizationPlan(fallback);
+        copy.shared = shared;
+        copy.inlineSites = inlineSites;
+        copy.totalSites = totalSites;
+        copy.size = size;
+        if (inline.containsKey(fileName)) {
+            copy.inline.put(name, inline.get(fileName));
+        }
+        return copy;
+    }
+
+    /**
+     * Checks if any site of a kind uses the shared subroutine, so it must be written.
+     * @param site the kind of site.
+     * @return true if the subroutine is needed.
+     */
+    public boolean isShared(Site site) {
+        return shared[site.ordinal()];
+    }
+
+    /**
+     * Describes the plan of one VM file, ex: "10010" for inline or not of each site. Part of the file's cache key.
+     * @param fileName the name of the VM file.
+     * @return the description.
+     */
+    public String describe(String fileName) {
+        StringBuilder description = new StringBuilder();
+        boolean[] sites = inline.get(fileName);
+        if (sites != null) {
+            for (boolean site : sites) {
+                description.append(site ? '1' : '0');
+            }
+        }
+        for (Site site : Site.values()) {
+            description.append(isShared(site) ? '+' : '-');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Gets how many instructions the program takes up with this plan.
+     * @return the size variable.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Reports how many sites are inline, and how much ROM the program takes up.
+     * @return the report.
+     */
+    public String report() {
+        return "Profile guided: " + inlineSites + " of " + totalSites + " sites inline, " + size + " instructions.";
+    }
+
+    /**
+     * Checks if an arithmetic command is a comparison, the only ones that are sites.
+     * @param command the arithmetic command.
+     * @return true for eq, gt and lt.
+     */
+    public static boolean isComparison(String command) {
+        return command.equals("eq") || command.equals("gt") || command.equals("lt");
+    }
+
+    // How many more instructions the inline code takes than the shared code.
+    private static int inlineExtra(Consumer<CodeWriter> code) {
+        return measure(code, new OptimizationPlan(true)) - measure(code, new OptimizationPlan(false));
+    }
+
+    // Counts the instructions some ASM code takes up, labels and comments don't count.
+    private static int measure(Consumer<CodeWriter> code, OptimizationPlan plan) {
+        InstructionCounter counter = new InstructionCounter();
+        CodeWriter writer = new CodeWriter(counter, "");
+        writer.setOptimizationPlan(plan);
+        code.accept(writer);
+        writer.close();
+        return counter.instructions;
+    }
+
+    // One site, how often it ran and what making it inline adds.
+    private static class Candidate {
+        private final String fileName;
+        private final int index;
+        private final Site site;
+        private final long count;
+        private final int extra;
+
+        private Candidate(String fileName, int index, Site site, long count, int extra) {
+            this.fileName = fileName;
+            this.index = index;
+            this.site = site;
+            this.count = count;
+            this.extra = extra;
+        }
+    }
+
+    // Counts the lines of ASM code written to it that are instructions.
+    private static class InstructionCounter extends OutputStream {
+        private int instructions;
+        private boolean lineStart = true;
+
+        @Override
+        public void write(int b) {
+            if (lineStart && b != '(' && b != '/' && b != '\n') {
+                instructions++;
+            }
+            lineStart = b == '\n';
+        }
+    }
+}
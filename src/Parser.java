@@ -1,5 +1,5 @@
-import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.Scanner;
 
 /**
@@ -14,6 +14,8 @@ public class Parser {
     private int arg2;
     private CommandType commandType;
     private Scanner inputFile;
+    private String fileName;
+    private int lineNumber;
 
     /**
      * Used for creating a new Parser type object.
@@ -26,7 +28,7 @@ public class Parser {
     public Parser(String fileName) {
         // sets the inputFile scanner to load the fileName argument.
         try {
-            this.inputFile = new Scanner(new File("src/" + fileName));
+            this.inputFile = new Scanner(VMTranslator.locate(fileName));
         } catch (FileNotFoundException e) {
             System.out.println("Unable to locate file for translation. Exiting program.");
             System.exit(0);
@@ -36,16 +38,41 @@ public class Parser {
         this.arg1 = null;
         this.arg2 = -1;
         this.commandType = null;
+        this.fileName = fileName;
+        this.lineNumber = 0;
+    }
+
+    /**
+     * Used for creating a new Parser type object that reads from an already open stream.
+     *
+     * pre: pass an open inputStream containing VM commands.
+     * post: Loads the inputStream to read from.
+     *
+     * @param input the stream of VM commands to be parsed with this object.
+     * @param fileName the name of the VM file the commands come from, used in error messages.
+     */
+    public Parser(InputStream input, String fileName) {
+        this.inputFile = new Scanner(input);
+
+        // initializes variables to null types.
+        this.arg1 = null;
+        this.arg2 = -1;
+        this.commandType = null;
+        this.fileName = fileName;
+        this.lineNumber = 0;
     }
 
     /**
      * Handles parsing one line from the inputFile variable.
      * pre: Have a valid inputStream from fileName open.
      * post: parses values from the current line in the inputStream into the corresponding variables.
+     * @throws IllegalArgumentException if the line is missing an argument or has a bad number.
      */
     public void advance() {
         // Places the current line into an array of tokens, delimited by " " for each token.
-        String[] tokens = inputFile.nextLine().trim().split(" ");
+        String line = inputFile.nextLine();
+        String[] tokens = line.trim().split(" ");
+        lineNumber++;
 
         // removes any comments
         for (int i = 0; i < tokens.length; i++) {
@@ -70,6 +97,15 @@ public class Parser {
         * Uses arg1, arg2 (return does not use arg1 or arg2)
         Function calling Commands - function, call, return
          */
+        try {
+            parse(tokens);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException(getLocation() + ": unable to read \"" + line.trim() + "\".");
+        }
+    }
+
+    // Sets the command type and arguments from the tokens of a line.
+    private void parse(String[] tokens) {
         switch (tokens[0]) {
             case "push":
                 commandType = CommandType.C_PUSH;
@@ -163,7 +199,6 @@ public class Parser {
                 arg2 = -1;
                 break;
         }
-
     }
 
     /**
@@ -199,6 +234,15 @@ public class Parser {
         return arg2;
     }
 
+    /**
+     * pre: advance has been called.
+     * post: returns where the current line is, ex: "Main.vm line 12".
+     * @return the fileName and lineNumber variables.
+     */
+    public String getLocation() {
+        return fileName + " line " + lineNumber;
+    }
+
     /**
      * pre: Have a valid commandType value for commandType.
      * post: returns the value from the commandType.
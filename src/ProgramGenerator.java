@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class writes random VM programs for DifferentialTester, each one a valid test that always halts.
+ *
+ * A program is Sys.init followed by up to five functions spread over Main.vm and Util.vm. A function only calls
+ * functions after it, and loops count down a local variable nothing else writes, so every program ends at
+ * Sys.init's "label Sys.init$HALT, goto Sys.init$HALT". The commands keep track of how deep the working stack is,
+ * so nothing pops past what was pushed. They touch every segment, static variables of each file, this and that
+ * pointed into the heap, calls with 0 to 3 arguments, and gt and lt of large numbers of either sign. Some gotos
+ * jump over and back between blocks, with commands that are never run, for ControlFlowCleanup to thread, move
+ * and remove.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class ProgramGenerator {
+
+    // Files of the program besides Sys.vm.
+    private static final String[] FILES = {"Main", "Util"};
+    private static final String[] BINARY = {"add", "sub", "and", "or", "eq", "gt", "lt"};
+    private static final String[] UNARY = {"neg", "not"};
+    private static final int MAX_DEPTH = 6;
+    private static final int MAX_NESTING = 3;
+
+    // private variables and objects
+    private Random random;
+    private String[] names;
+    private int[] numArgs;
+    private int[] numLocals;
+    private int function;
+    private int labels;
+    private List<String> lines;
+
+    private ProgramGenerator(long seed) {
+        this.random = new Random(seed);
+        this.names = new String[2 + random.nextInt(5)];
+        this.numArgs = new int[names.length];
+        this.numLocals = new int[names.length];
+
+        names[0] = "Sys.init";
+        for (int i = 1; i < names.length; i++) {
+            names[i] = FILES[random.nextInt(FILES.length)] + ".f" + i;
+            numArgs[i] = random.nextInt(4);
+        }
+        for (int i = 0; i < names.length; i++) {
+            numLocals[i] = random.nextInt(4);
+        }
+    }
+
+    /**
+     * Writes a random program.
+     *
+     * pre: none.
+     * post: returns the same program for the same seed.
+     *
+     * @param seed the seed of the program.
+     * @return fileName -> VM code of each file, Sys first.
+     */
+    public static LinkedHashMap<String, String> generate(long seed) {
+        ProgramGenerator generator = new ProgramGenerator(seed);
+        LinkedHashMap<String, String> files = new LinkedHashMap<>();
+        files.put("Sys", "");
+
+        for (int i = 0; i < generator.names.length; i++) {
+            String fileName = generator.names[i].substring(0, generator.names[i].indexOf('.'));
+            files.merge(fileName, generator.function(i), String::concat);
+        }
+        return files;
+    }
+
+    // Writes one function, the last local is the loop counter.
+    private String function(int index) {
+        function = index;
+        lines = new ArrayList<>();
+        lines.add("function " + names[index] + " " + (numLocals[index] + 1));
+
+        block(5 + random.nextInt(20), 0, false);
+
+        if (index == 0) {
+            lines.add("label Sys.init$HALT");
+            lines.add("goto Sys.init$HALT");
+        } else {
+            lines.add("push " + source());
+            lines.add("return");
+        }
+        return String.join("\n", lines) + "\n";
+    }
+
+    // Writes commands that leave the working stack as deep as they found it.
+    private void block(int commands, int nesting, boolean inLoop) {
+        int depth = 0;
+
+        for (int i = 0; i < commands; i++) {
+            int choice = random.nextInt(100);
+            int callee = function + 1 + random.nextInt(Math.max(1, names.length - function - 1));
+
+            if (choice < 30 && depth < MAX_DEPTH || depth == 0 && choice < 60) {
+                lines.add("push " + source());
+                depth++;
+            } else if (choice < 45 && depth >= 1) {
+                lines.add("pop " + target());
+                depth--;
+            } else if (choice < 60 && depth >= 2) {
+                lines.add(BINARY[random.nextInt(BINARY.length)]);
+                depth--;
+            } else if (choice < 65 && depth >= 1) {
+                lines.add(UNARY[random.nextInt(UNARY.length)]);
+            } else if (choice < 68 && depth < MAX_DEPTH) {
+                // gt or lt of two large numbers, x - y overflows when they have opposite signs.
+                for (int operand = 0; operand < 2; operand++) {
+                    lines.add("push constant " + (16384 + random.nextInt(16384)));
+                    if (random.nextBoolean()) {
+                        lines.add("neg");
+                    }
+                }
+                lines.add(random.nextBoolean() ? "gt" : "lt");
+                depth++;
+            } else if (choice < 78 && callee < names.length && depth >= numArgs[callee]) {
+                lines.add("call " + names[callee] + " " + numArgs[callee]);
+                depth += 1 - numArgs[callee];
+            } else if (choice < 86 && nesting < MAX_NESTING && depth >= 1) {
+                // if-goto TRUE, else block, goto END, TRUE block.
+                String label = newLabel();
+                lines.add("if-goto " + label + "$TRUE");
+                depth--;
+                block(random.nextInt(6), nesting + 1, inLoop);
+                lines.add("goto " + label + "$END");
+                lines.add("label " + label + "$TRUE");
+                block(random.nextInt(6), nesting + 1, inLoop);
+                lines.add("label " + label + "$END");
+            } else if (choice < 89 && nesting < MAX_NESTING) {
+                // runs the SECOND block, then the FIRST, through a goto that only jumps on,
+                // with commands after a goto that are never run. Shaped for ControlFlowCleanup.
+                String label = newLabel();
+                lines.add("goto " + label + "$HOP");
+                lines.add("label " + label + "$FIRST");
+                block(random.nextInt(6), nesting + 1, inLoop);
+                lines.add("goto " + label + "$END");
+                lines.add("push constant " + random.nextInt(20));
+                lines.add("pop temp " + random.nextInt(8));
+                lines.add("label " + label + "$HOP");
+                lines.add("goto " + label + "$SECOND");
+                lines.add("label " + label + "$SECOND");
+                block(random.nextInt(6), nesting + 1, inLoop);
+                lines.add("goto " + label + "$FIRST");
+                lines.add("label " + label + "$END");
+            } else if (choice < 94 && nesting < MAX_NESTING && !inLoop) {
+                // counts the loop counter down from 1 - 3.
+                String label = newLabel();
+                String counter = "local " + numLocals[function];
+                lines.add("push constant " + (1 + random.nextInt(3)));
+                lines.add("pop " + counter);
+                lines.add("label " + label + "$LOOP");
+                lines.add("push " + counter);
+                lines.add("push constant 0");
+                lines.add("eq");
+                lines.add("if-goto " + label + "$END");
+                block(random.nextInt(8), nesting + 1, true);
+                lines.add("push " + counter);
+                lines.add("push constant 1");
+                lines.add("sub");
+                lines.add("pop " + counter);
+                lines.add("goto " + label + "$LOOP");
+                lines.add("label " + label + "$END");
+            } else if (choice < 97) {
+                // points this or that somewhere else in the heap.
+                int pointer = random.nextInt(2);
+                lines.add("push constant " + (3000 + 1000 * pointer + random.nextInt(64)));
+                lines.add("pop pointer " + pointer);
+            } else {
+                lines.add("push " + source());
+                lines.add("pop " + target());
+            }
+        }
+
+        while (depth > 0) {
+            lines.add("pop " + target());
+            depth--;
+        }
+    }
+
+    // A segment to push from, any local may be read.
+    private String source() {
+        switch (random.nextInt(8)) {
+            case 0:
+                return numLocals[function] > 0 ? "local " + random.nextInt(numLocals[function] + 1) : constant();
+            case 1:
+                return numArgs[function] > 0 ? "argument " + random.nextInt(numArgs[function]) : constant();
+            case 2:
+                return "static " + random.nextInt(4);
+            case 3:
+                return "temp " + random.nextInt(8);
+            case 4:
+                return "this " + random.nextInt(8);
+            case 5:
+                return "that " + random.nextInt(8);
+            case 6:
+                return "pointer " + random.nextInt(2);
+            default:
+                return constant();
+        }
+    }
+
+    // A segment to pop into, never the loop counter or a pointer.
+    private String target() {
+        switch (random.nextInt(6)) {
+            case 0:
+                return numLocals[function] > 0 ? "local " + random.nextInt(numLocals[function]) : "temp 0";
+            case 1:
+                return numArgs[function] > 0 ? "argument " + random.nextInt(numArgs[function]) : "temp 1";
+            case 2:
+                return "static " + random.nextInt(4);
+            case 3:
+                return "temp " + random.nextInt(8);
+            case 4:
+                return "this " + random.nextInt(8);
+            default:
+                return "that " + random.nextInt(8);
+        }
+    }
+
+    // Mostly small numbers, sometimes any constant up to 32767.
+    private String constant() {
+        return "constant " + (random.nextInt(3) > 0 ? random.nextInt(20) : random.nextInt(32768));
+    }
+
+    // Labels are unique in the whole program, as CodeWriter writes them as they are.
+    private String newLabel() {
+        return names[function] + "$L" + labels++;
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class gives every static variable of a whole program a fixed RAM address, for whole-program translation.
+ *
+ * Without it, "push/pop static i" becomes the symbol @fileName.i, and the assembler places those symbols from
+ * RAM[16] in the order it first sees them. With it, the static variables of each VM file are packed together,
+ * file after file in program order, and CodeWriter writes their literal address instead.
+ * Only the indexes a file uses take up room, so the 240 words of RAM[16] - RAM[255] go as far as they can.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class StaticAllocation {
+
+    // The static segment, RAM[16] - RAM[255].
+    public static final int FIRST_ADDRESS = 16;
+    public static final int LAST_ADDRESS = 255;
+
+    // private variables and objects
+    // fileName -> (index -> address), in program order.
+    private Map<String, Map<Integer, Integer>> addresses;
+    private int used;
+
+    private StaticAllocation() {
+        this.addresses = new LinkedHashMap<>();
+        this.used = 0;
+    }
+
+    /**
+     * Reads every VM file of a program and gives each static variable used an address.
+     *
+     * pre: every VM file can be found.
+     * post: returns the addresses of every static variable in the program.
+     *
+     * @param filesRead the VM files of the program, in the order they are placed in the ASM file.
+     * @return the allocation of the program.
+     * @throws IllegalStateException if the static variables don't fit in the static segment.
+     */
+    public static StaticAllocation allocate(List<String> filesRead) {
+        StaticAllocation allocation = new StaticAllocation();
+
+        for (String fileRead : filesRead) {
+            // indexes are kept sorted, so a file's static variables are laid out in index order.
+            TreeSet<Integer> indexes = new TreeSet<>();
+            Parser parser = new Parser(fileRead);
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                if ((parser.getCommandType() == CommandType.C_PUSH || parser.getCommandType() == CommandType.C_POP)
+                        && parser.getArg1().equals("static")) {
+                    indexes.add(parser.getArg2());
+                }
+            }
+
+            Map<Integer, Integer> file = allocation.addresses.computeIfAbsent(VMTranslator.baseName(fileRead),
+                    name -> new LinkedHashMap<>());
+            for (int index : indexes) {
+                if (!file.containsKey(index)) {
+                    file.put(index, FIRST_ADDRESS + allocation.used);
+                    allocation.used++;
+                }
+            }
+        }
+
+        // fails before anything is written, rather than letting statics run into the stack at RAM[256].
+        if (allocation.used > capacity()) {
+            throw new IllegalStateException("Static segment overflow, " + allocation.used + " static variables don't fit in "
+                    + capacity() + " words.");
+        }
+
+        return allocation;
+    }
+
+    /**
+     * Gets the address of a static variable.
+     *
+     * pre: the VM file was part of the program given to allocate.
+     * post: returns the address, or -1 if the program never uses that variable.
+     *
+     * @param fileName the name of the VM file, as given to CodeWriter.setFileName.
+     * @param index the index of the static variable.
+     * @return the address of the static variable.
+     */
+    public int address(String fileName, int index) {
+        Map<Integer, Integer> file = addresses.get(fileName);
+        Integer address = file == null ? null : file.get(index);
+        return address == null ? -1 : address;
+    }
+
+    /**
+     * Describes where one VM file's static variables are, ex: "0=16,3=17". Part of the file's cache key.
+     * @param fileName the name of the VM file.
+     * @return the description.
+     */
+    public String describe(String fileName) {
+        StringBuilder description = new StringBuilder();
+        Map<Integer, Integer> file = addresses.get(fileName);
+        if (file != null) {
+            for (Map.Entry<Integer, Integer> entry : file.entrySet()) {
+                description.append(entry.getKey()).append('=').append(entry.getValue()).append(',');
+            }
+        }
+        return description.toString();
+    }
+
+    /**
+     * Reports how much of the static segment is used, and by which VM files.
+     * @return the report.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("Static segment: " + used + " of " + capacity() + " words used");
+        if (used > 0) {
+            report.append(" (RAM[").append(FIRST_ADDRESS).append("] - RAM[").append(FIRST_ADDRESS + used - 1).append("])");
+        }
+        for (Map.Entry<String, Map<Integer, Integer>> file : addresses.entrySet()) {
+            if (!file.getValue().isEmpty()) {
+                report.append(", ").append(file.getKey()).append(": ").append(file.getValue().size());
+            }
+        }
+        return report.append('.').toString();
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many words of the static segment are used.
+     * @return the used variable.
+     */
+    public int getUsed() {
+        return used;
+    }
+
+    // Number of words in the static segment.
+    private static int capacity() {
+        return LAST_ADDRESS - FIRST_ADDRESS + 1;
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class handles an on disk cache of translated VM files, so unchanged VM files don't need to be translated again.
+ *
+ * Each entry is keyed by a hash of the VM file's contents and the translator options, and holds the ASM code
+ * of that one file in a relocatable form:
+ * static variables use FILE_MARK instead of the file name, and the numbered labels (RETURN_ADDRESS_n, TRUE.n,
+ * ENDCOMP.n, MIXED.n, SAME.n, SIGN.n) start counting from 0. Splicing an entry in renames both to fit the ASM file
+ * being written.
+ *
+ * Entry layout: a header line "// vmcache key labelCount bodyHash", followed by the ASM code.
+ * The cache is kept under maxBytes by removing the least recently used entries, down to three quarters of it.
+ * One cache may be shared by several threads, access to the directory is synchronized.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class TranslationCache {
+
+    // Placeholder for the file name of static variables, '%' can't appear in VM or ASM symbols.
+    public static final String FILE_MARK = "%FILE%";
+
+    // Changing how entries are written must change this, so old entries are no longer hit.
+    private static final String FORMAT = "vmcache-5";
+
+    // Labels numbered by CodeWriter, the only ones that need renumbering. Only whole symbols, after "@" or "(".
+    private static final Pattern NUMBERED_LABEL =
+            Pattern.compile("(?<=[@(])(RETURN_ADDRESS_|TRUE\\.|ENDCOMP\\.|MIXED\\.|SAME\\.|SIGN\\.)(\\d+)\\b");
+
+    // private variables and objects
+    private File directory;
+    private long maxBytes;
+    // bytes taken up by the entries, counted once from the directory then kept up to date. -1 until counted.
+    private long totalBytes;
+    private int hits;
+    private int misses;
+
+    /**
+     * Handles the creation of a cache stored in a directory.
+     *
+     * pre: pass a directory that can be created or written to.
+     * post: creates the directory if need be.
+     *
+     * @param directory where the cache entries are stored.
+     * @param maxBytes the largest size all entries may take up together.
+     */
+    public TranslationCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.totalBytes = -1;
+        this.hits = 0;
+        this.misses = 0;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Unable to create cache directory " + directory + ", caching is disabled.");
+            this.directory = null;
+        }
+    }
+
+    /**
+     * Works out the key of a VM file.
+     *
+     * pre: options describe every translator setting that changes the ASM code.
+     * post: returns the same key only for the same contents with the same options.
+     *
+     * @param contents the contents of the VM file.
+     * @param options the translator options.
+     * @return the key of the cache entry.
+     */
+    public static String key(byte[] contents, String options) {
+        MessageDigest digest = sha256();
+        digest.update((FORMAT + "\n" + options + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update(contents);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Writes the translation of one VM file, taken from the cache if possible.
+     *
+     * pre: writer has its fileName set to the VM file being translated.
+     * post: the ASM code of the file is written with writer, and stored in the cache if it wasn't already.
+     *
+     * @param contents the contents of the VM file.
+     * @param options the translator options.
+     * @param writer the writer of the ASM file.
+     */
+    public void translate(byte[] contents, String options, CodeWriter writer) {
+        String key = key(contents, options);
+        Entry entry = load(key);
+
+        // translated outside of the lock, other threads keep using the cache meanwhile.
+        if (entry == null) {
+            entry = translate(key, contents, writer);
+            store(entry);
+        }
+
+        splice(entry, writer);
+    }
+
+    /**
+     * Checks every entry in the cache, removing those that don't match their header.
+     *
+     * pre: none.
+     * post: only valid entries are left in the cache.
+     *
+     * @return the number of entries that were removed.
+     */
+    public synchronized int verify() {
+        int removed = 0;
+
+        for (File file : entries()) {
+            String key = file.getName().substring(0, file.getName().length() - ".asm".length());
+            if (read(file, key) == null) {
+                removed++;
+            }
+        }
+
+        totalBytes = -1;
+        return removed;
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many VM files were taken from the cache.
+     * @return the hits variable.
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many VM files had to be translated.
+     * @return the misses variable.
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    // Translates a VM file on its own, into the relocatable form.
+    private static Entry translate(String key, byte[] contents, CodeWriter writer) {
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter scratch = new CodeWriter(asm, FILE_MARK);
+
+        // allocated static variables are looked up by the real file name, and are part of the key.
+        // Without them the entry keeps FILE_MARK, and the file's planned sites are looked up under it.
+        if (writer.getStaticAllocation() != null) {
+            scratch.setFileName(writer.getFileName());
+            scratch.setStaticAllocation(writer.getStaticAllocation());
+            scratch.setOptimizationPlan(writer.getOptimizationPlan());
+        } else if (writer.getOptimizationPlan() != null) {
+            scratch.setOptimizationPlan(writer.getOptimizationPlan().rename(writer.getFileName(), FILE_MARK));
+        }
+
+        VMTranslator.translate(new Parser(new ByteArrayInputStream(contents), writer.getFileName() + ".vm"), scratch);
+        scratch.close();
+
+        return new Entry(key, scratch.getNumLabels(), new String(asm.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    // Renames the static variables and numbered labels of an entry, then writes it.
+    private static void splice(Entry entry, CodeWriter writer) {
+        int base = writer.getNumLabels();
+        String asm = entry.body.replace(FILE_MARK, writer.getFileName());
+
+        if (base != 0) {
+            Matcher matcher = NUMBERED_LABEL.matcher(asm);
+            StringBuffer relocated = new StringBuffer(asm.length() + asm.length() / 16);
+            while (matcher.find()) {
+                matcher.appendReplacement(relocated, matcher.group(1) + (Integer.parseInt(matcher.group(2)) + base));
+            }
+            matcher.appendTail(relocated);
+            asm = relocated.toString();
+        }
+
+        writer.writeRaw(asm);
+        writer.skipLabels(entry.labelCount);
+    }
+
+    // Loads an entry, marking it as recently used. Returns null if it is missing or invalid.
+    private synchronized Entry load(String key) {
+        File file = directory == null ? null : new File(directory, key + ".asm");
+        Entry entry = file != null && file.isFile() ? read(file, key) : null;
+
+        if (entry != null) {
+            file.setLastModified(System.currentTimeMillis());
+            hits++;
+        }
+        return entry;
+    }
+
+    // Reads an entry, deleting the file if the header doesn't match the key or the body.
+    private static Entry read(File file, String key) {
+        try {
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            int newline = text.indexOf('\n');
+            String[] header = newline < 0 ? new String[0] : text.substring(0, newline).split(" ");
+            String body = text.substring(newline + 1);
+
+            if (header.length == 5 && header[1].equals("vmcache") && header[2].equals(key)
+                    && header[4].equals(hash(body))) {
+                return new Entry(key, Integer.parseInt(header[3]), body);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // falls through, treated as an invalid entry.
+        }
+
+        file.delete();
+        return null;
+    }
+
+    // Writes an entry to the cache, then removes old entries if the cache has grown too big.
+    private synchronized void store(Entry entry) {
+        misses++;
+        if (directory == null) {
+            return;
+        }
+
+        String text = "// vmcache " + entry.key + " " + entry.labelCount + " " + hash(entry.body) + "\n" + entry.body;
+        File file = new File(directory, entry.key + ".asm");
+        File temp = new File(directory, entry.key + ".tmp");
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        long replaced = file.length();
+
+        try {
+            // written to a temp file first, so a half written entry is never read.
+            Files.write(temp.toPath(), bytes);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to write cache entry " + file + ", continuing without it.");
+            temp.delete();
+            return;
+        }
+
+        if (totalBytes < 0) {
+            totalBytes = size(stored());
+        } else {
+            totalBytes += bytes.length - replaced;
+        }
+        if (totalBytes > maxBytes) {
+            evict();
+        }
+    }
+
+    // Removes the least recently used entries until the cache is down to three quarters of maxBytes, so the
+    // directory is only listed again after many more misses. The total is counted again, other processes may
+    // share the directory.
+    private void evict() {
+        List<Stored> files = stored();
+        long total = size(files);
+
+        files.sort(Comparator.comparingLong(file -> file.lastModified));
+        for (int i = 0; i < files.size() && total > maxBytes / 4 * 3; i++) {
+            if (files.get(i).file.delete()) {
+                total -= files.get(i).length;
+            }
+        }
+        totalBytes = total;
+    }
+
+    // Lists the entry files with their length and last use, read once as other processes may touch them.
+    private List<Stored> stored() {
+        List<Stored> files = new ArrayList<>();
+        for (File file : entries()) {
+            files.add(new Stored(file, file.length(), file.lastModified()));
+        }
+        return files;
+    }
+
+    // Total length of some entry files.
+    private static long size(List<Stored> files) {
+        long total = 0;
+        for (Stored file : files) {
+            total += file.length;
+        }
+        return total;
+    }
+
+    // Lists the entry files of the cache.
+    private File[] entries() {
+        if (directory == null) {
+            return new File[0];
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".asm"));
+        return files == null ? new File[0] : files;
+    }
+
+    // Hash of the ASM code of an entry.
+    private static String hash(String body) {
+        return toHex(sha256().digest(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // One translated VM file.
+    private static class Entry {
+        private final String key;
+        private final int labelCount;
+        private final String body;
+
+        private Entry(String key, int labelCount, String body) {
+            this.key = key;
+            this.labelCount = labelCount;
+            this.body = body;
+        }
+    }
+
+    // One entry file, as it was when listed.
+    private static class Stored {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+
+        private Stored(File file, long length, long lastModified) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
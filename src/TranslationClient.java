@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thin client for TranslationDaemon, sends its command line as one request and prints the answer.
+ *
+ * Usage: TranslationClient [--port n] [--static-alloc] [--profile file [--rom-budget n]] [--cleanup] [--out file.asm]
+ *                          file.vm ...
+ *        TranslationClient [--port n] shutdown
+ * Files are found the way VMTranslator finds them, from the client's working directory, and sent as absolute
+ * paths so the daemon doesn't look for them in its own. The ASM file goes where VMTranslator would write it.
+ * The daemon's token is read from TranslationDaemon.tokenFile and sent first.
+ * Exits with status 1 if the daemon answers with an error or can't be reached.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class TranslationClient {
+
+    public static void main(String[] args) {
+        int port = TranslationDaemon.DEFAULT_PORT;
+        StringBuilder request = new StringBuilder();
+        List<String> filesRead = new ArrayList<>();
+        boolean outputGiven = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--out":
+                        outputGiven = true;
+                        request.append(args[i]).append(' ').append(absolute(args[++i])).append(' ');
+                        break;
+                    case "--profile":
+                        request.append(args[i]).append(' ').append(absolute(args[++i])).append(' ');
+                        break;
+                    case "--rom-budget":
+                        request.append(args[i]).append(' ').append(TranslationDaemon.quote(args[++i])).append(' ');
+                        break;
+                    case "--static-alloc":
+                    case "--cleanup":
+                    case "shutdown":
+                        request.append(args[i]).append(' ');
+                        break;
+                    default:
+                        filesRead.add(args[i]);
+                        request.append(absolute(args[i])).append(' ');
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Unable to read the options.");
+            System.exit(1);
+        }
+        if (!outputGiven && !filesRead.isEmpty()) {
+            request.append("--out ").append(absolute(VMTranslator.outputName(filesRead)));
+        }
+
+        String token = null;
+        try {
+            token = new String(Files.readAllBytes(TranslationDaemon.tokenFile(port).toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Unable to read the translation daemon's token from " + TranslationDaemon.tokenFile(port)
+                    + ", is it running on port " + port + "?");
+            System.exit(1);
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             PrintWriter output = new PrintWriter(
+                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+             BufferedReader input = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            output.println(token);
+            output.println(request.toString().trim());
+            String answer = input.readLine();
+
+            System.out.println(answer);
+            if (answer == null || !answer.startsWith("ok")) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to reach the translation daemon on port " + port + ".");
+            System.exit(1);
+        }
+    }
+
+    // Finds a file the way VMTranslator does, from this process's working directory, quoted for the request.
+    private static String absolute(String fileName) {
+        return TranslationDaemon.quote(VMTranslator.locate(fileName).getAbsolutePath());
+    }
+}
@@ -0,0 +1,326 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class keeps the translator running between builds, so the JVM only starts and warms up once.
+ *
+ * Listens on a local (loopback only) socket. Any local process can connect, so the first line of each connection
+ * must be the token the daemon wrote to tokenFile(port), which only the user can read. Otherwise the daemon answers
+ * "error bad token" and closes the connection.
+ * After the token come requests, one per line, each answered with one line:
+ * "[--static-alloc] [--profile file [--rom-budget n]] [--cleanup] [--out file.asm] file.vm ..." translates the VM
+ * files like VMTranslator does, answers "ok file.asm" or "error message".
+ * "shutdown" stops the daemon, answers "ok shutdown".
+ * Arguments are separated by spaces. One with spaces, quotes or backslashes in it is written in double quotes, with
+ * a backslash before each quote or backslash inside, see quote.
+ * Files are found through VMTranslator.locate, in the daemon's src folder unless given as absolute paths, which
+ * is how TranslationClient sends them.
+ * Requests are handled at the same time on a pool of worker threads, each reusing its own output buffer and
+ * CodeWriter.
+ * TranslationClient sends a single request from the command line.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class TranslationDaemon {
+
+    // Port used when none is given, by both the daemon and the client.
+    public static final int DEFAULT_PORT = 7623;
+
+    // Output buffers that have grown past this are not kept for the next request.
+    private static final int MAX_KEPT_BUFFER = 16 * 1024 * 1024;
+
+    // private variables and objects
+    private int port;
+    private TranslationCache cache;
+    private ExecutorService workers;
+    private ServerSocket server;
+    private volatile boolean running;
+    private byte[] token;
+    private ThreadLocal<ByteArrayOutputStream> buffers;
+    private ThreadLocal<CodeWriter> writers;
+
+    /**
+     * Handles the creation of a daemon, does not start listening yet.
+     *
+     * @param port the local port to listen on.
+     * @param cache the cache shared by every request, or null to translate every file.
+     */
+    public TranslationDaemon(int port, TranslationCache cache) {
+        this.port = port;
+        this.cache = cache;
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.buffers = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(64 * 1024));
+        this.writers = ThreadLocal.withInitial(() -> new CodeWriter(buffers.get(), ""));
+    }
+
+    /**
+     * Listens for requests until a shutdown request is received.
+     *
+     * pre: the port is free.
+     * post: every request received has been answered, the worker threads are stopped.
+     */
+    public void serve() {
+        try {
+            server = new ServerSocket(port, 64, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            System.out.println("Unable to listen on port " + port + ". Exiting program.");
+            System.exit(0);
+        }
+        try {
+            writeToken();
+        } catch (IOException e) {
+            System.out.println("Unable to write the token file " + tokenFile(port) + ". Exiting program.");
+            System.exit(0);
+        }
+
+        running = true;
+        System.out.println("Translation daemon listening on port " + port + ".");
+
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                workers.execute(() -> handle(socket));
+            } catch (IOException e) {
+                // the server socket is closed by a shutdown request, anything else is reported.
+                if (running) {
+                    System.out.println("Problem accepting a request: " + e.getMessage());
+                }
+            }
+        }
+
+        workers.shutdown();
+    }
+
+    /**
+     * Finds the file a daemon writes its token to, in the user's home folder.
+     * @param port the port the daemon listens on.
+     * @return the token file, ex: ~/.vmtranslator-7623.token.
+     */
+    public static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".vmtranslator-" + port + ".token");
+    }
+
+    /**
+     * Writes one argument of a request so it is read back whole, in quotes if it has spaces, quotes or backslashes.
+     * @param argument the argument, ex: a file name.
+     * @return the argument as it goes in a request line.
+     */
+    public static String quote(String argument) {
+        boolean plain = argument.chars().noneMatch(c -> Character.isWhitespace(c) || c == '"' || c == '\\');
+        if (plain && !argument.isEmpty()) {
+            return argument;
+        }
+
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : argument.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Handles a single request line.
+     *
+     * pre: none.
+     * post: the request has been carried out.
+     *
+     * @param line the request.
+     * @return the answer to the request.
+     */
+    public String request(String line) {
+        List<String> tokens;
+        try {
+            tokens = split(line);
+        } catch (IllegalArgumentException e) {
+            return "error " + e.getMessage();
+        }
+
+        if (tokens.size() == 1 && tokens.get(0).equals("shutdown")) {
+            shutdown();
+            return "ok shutdown";
+        }
+
+        List<String> filesRead = new ArrayList<>();
+        String fileWrite = null;
+        boolean allocateStatics = false;
+        String profileRead = null;
+        int romBudget = OptimizationPlan.ROM_SIZE;
+        boolean cleanup = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).equals("--out") && i + 1 < tokens.size()) {
+                fileWrite = tokens.get(++i);
+            } else if (tokens.get(i).equals("--static-alloc")) {
+                allocateStatics = true;
+            } else if (tokens.get(i).equals("--cleanup")) {
+                cleanup = true;
+            } else if (tokens.get(i).equals("--profile") && i + 1 < tokens.size()) {
+                profileRead = tokens.get(++i);
+            } else if (tokens.get(i).equals("--rom-budget") && i + 1 < tokens.size()) {
+                try {
+                    romBudget = Integer.parseInt(tokens.get(++i));
+                } catch (NumberFormatException e) {
+                    return "error bad --rom-budget " + tokens.get(i);
+                }
+            } else {
+                filesRead.add(tokens.get(i));
+            }
+        }
+
+        if (filesRead.isEmpty()) {
+            return "error no VM files given";
+        }
+        // checked here, as a missing file would otherwise exit the whole daemon.
+        for (String fileRead : filesRead) {
+            if (!VMTranslator.locate(fileRead).isFile()) {
+                return "error unable to locate " + fileRead;
+            }
+        }
+        if (fileWrite == null) {
+            fileWrite = VMTranslator.outputName(filesRead);
+        }
+
+        // the whole ASM file is built in this thread's buffer, then written at once.
+        ByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try {
+            CodeWriter writer = writers.get();
+            writer.reset("");
+            if (allocateStatics) {
+                writer.setStaticAllocation(StaticAllocation.allocate(filesRead));
+            }
+            if (profileRead != null) {
+                writer.setOptimizationPlan(OptimizationPlan.plan(filesRead, ExecutionProfile.load(profileRead),
+                        romBudget));
+            }
+            VMTranslator.translateFiles(filesRead, writer, cache);
+            writer.flush();
+
+            try (OutputStream output = new FileOutputStream(VMTranslator.locate(fileWrite))) {
+                if (cleanup) {
+                    ControlFlowCleanup.clean(buffer.toByteArray(), new BufferedOutputStream(output));
+                } else {
+                    buffer.writeTo(output);
+                }
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // a VM file or profile that can't be translated, ex: a bad segment.
+            return "error " + e.getMessage();
+        } catch (IOException | RuntimeException e) {
+            return "error " + e;
+        } finally {
+            if (buffer.size() > MAX_KEPT_BUFFER) {
+                buffers.remove();
+                writers.remove();
+            }
+        }
+
+        return "ok " + fileWrite;
+    }
+
+    // Splits a request line into its arguments, undoing quote.
+    private static List<String> split(String line) {
+        List<String> arguments = new ArrayList<>();
+        StringBuilder argument = new StringBuilder();
+        boolean inArgument = false;
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted && c == '\\' && i + 1 < line.length()) {
+                argument.append(line.charAt(++i));
+            } else if (c == '"') {
+                quoted = !quoted;
+                inArgument = true;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (inArgument) {
+                    arguments.add(argument.toString());
+                    argument.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                argument.append(c);
+                inArgument = true;
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote in request");
+        }
+        if (inArgument) {
+            arguments.add(argument.toString());
+        }
+        return arguments;
+    }
+
+    // Answers every request line sent over one connection, after checking its token.
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader input = new BufferedReader(
+                     new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter output = new PrintWriter(connection.getOutputStream(), true)) {
+            String line = input.readLine();
+            if (line == null || !MessageDigest.isEqual(line.getBytes(StandardCharsets.UTF_8), token)) {
+                output.println("error bad token");
+                return;
+            }
+            while ((line = input.readLine()) != null) {
+                output.println(request(line));
+            }
+        } catch (IOException e) {
+            // the client went away, nothing left to answer.
+        }
+    }
+
+    // Makes a new random token and writes it to a token file only the user can read, replacing any old one.
+    private void writeToken() throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        token = Base64.getUrlEncoder().withoutPadding().encodeToString(random).getBytes(StandardCharsets.UTF_8);
+
+        Path path = tokenFile(port).toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, ex: Windows, where the home folder is already private to the user.
+            Files.createFile(path);
+        }
+        Files.write(path, token);
+    }
+
+    // Stops accepting requests, requests already being handled still finish.
+    private void shutdown() {
+        running = false;
+        tokenFile(port).delete();
+        try {
+            server.close();
+        } catch (IOException e) {
+            // already closed.
+        }
+    }
+}
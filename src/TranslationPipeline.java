@@ -0,0 +1,228 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class translates a program as a pipeline of three threads, so reading, translating and writing overlap.
+ *
+ * Parser thread: fills batches with the commands of the VM files.
+ * Generator thread: translates each batch into a chunk of ASM code.
+ * Writer (the calling thread): writes each chunk to the output.
+ * Batches and chunks are taken from fixed pools and given back once used, so memory stays the same
+ * no matter how big the VM files are. Gives the same ASM code as VMTranslator.translateFiles without a cache.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class TranslationPipeline {
+
+    // Commands per batch.
+    private static final int BATCH_SIZE = 4096;
+
+    // Batches and chunks in use at once, each stage may run this far ahead of the next.
+    private static final int DEPTH = 4;
+
+    // Marks the end of the program between stages.
+    private static final Batch END_BATCH = new Batch();
+    private static final ByteArrayOutputStream END_CHUNK = new ByteArrayOutputStream(0);
+
+    // private variables and objects
+    private BlockingQueue<Batch> emptyBatches;
+    private BlockingQueue<Batch> parsedBatches;
+    private BlockingQueue<ByteArrayOutputStream> emptyChunks;
+    private BlockingQueue<ByteArrayOutputStream> fullChunks;
+    private Thread parsing;
+    private Thread generating;
+    private StaticAllocation statics;
+    private OptimizationPlan plan;
+    private volatile Throwable failure;
+
+    private TranslationPipeline() {
+        emptyBatches = new ArrayBlockingQueue<>(DEPTH);
+        parsedBatches = new ArrayBlockingQueue<>(DEPTH + 1);
+        emptyChunks = new ArrayBlockingQueue<>(DEPTH);
+        fullChunks = new ArrayBlockingQueue<>(DEPTH + 1);
+
+        for (int i = 0; i < DEPTH; i++) {
+            emptyBatches.add(new Batch());
+            emptyChunks.add(new ByteArrayOutputStream(BATCH_SIZE * 32));
+        }
+    }
+
+    /**
+     * Translates a whole program, one or more VM files placed in the same ASM file.
+     *
+     * pre: every VM file can be found.
+     * post: writes the ASM code of every VM file followed by the ending loop, does not close the output.
+     *
+     * @param filesRead the VM files, in the order they are placed in the ASM file.
+     * @param output where the ASM code is written.
+     * @param statics the allocation of static variables, or null to write them as symbols.
+     * @param plan the optimization plan of the program, or null to write every site inline.
+     * @throws IOException if the output can't be written, or a stage of the pipeline failed.
+     */
+    public static void translate(List<String> filesRead, OutputStream output, StaticAllocation statics,
+                                 OptimizationPlan plan) throws IOException {
+        TranslationPipeline pipeline = new TranslationPipeline();
+        pipeline.statics = statics;
+        pipeline.plan = plan;
+        pipeline.run(filesRead, output);
+    }
+
+    // Starts the parser and generator threads, then writes the chunks they make.
+    private void run(List<String> filesRead, OutputStream output) throws IOException {
+        parsing = new Thread(() -> parse(filesRead), "pipeline-parser");
+        generating = new Thread(this::generate, "pipeline-generator");
+        parsing.setDaemon(true);
+        generating.setDaemon(true);
+        parsing.start();
+        generating.start();
+
+        try {
+            ByteArrayOutputStream chunk = fullChunks.take();
+            while (chunk != END_CHUNK) {
+                chunk.writeTo(output);
+                chunk.reset();
+                emptyChunks.put(chunk);
+                chunk = fullChunks.take();
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Translation pipeline interrupted.");
+        }
+
+        output.flush();
+        if (failure != null) {
+            throw new IOException("Translation pipeline failed, " + failure.getMessage(), failure);
+        }
+    }
+
+    // Parser stage, each batch holds commands of only one VM file.
+    private void parse(List<String> filesRead) {
+        try {
+            for (String fileRead : filesRead) {
+                Parser parser = new Parser(fileRead);
+                Batch batch = emptyBatches.take();
+                batch.fileName = VMTranslator.baseName(fileRead);
+
+                while (parser.hasMoreCommands()) {
+                    parser.advance();
+
+                    // skips this line if the command type is to be ignore / null
+                    if (parser.getCommandType() == null) {
+                        continue;
+                    }
+
+                    batch.add(parser.getCommandType(), parser.getArg1(), parser.getArg2());
+                    if (batch.size == BATCH_SIZE) {
+                        parsedBatches.put(batch);
+                        batch = emptyBatches.take();
+                        batch.fileName = VMTranslator.baseName(fileRead);
+                    }
+                }
+
+                parsedBatches.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // stopped by another stage, which already knows why.
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        try {
+            parsedBatches.put(END_BATCH);
+        } catch (InterruptedException e) {
+            // stopped by another stage, nothing left to pass on.
+        }
+    }
+
+    // Generator stage, one CodeWriter for the whole program so labels stay unique across batches.
+    private void generate() {
+        ChunkStream sink = new ChunkStream();
+        CodeWriter writer = new CodeWriter(sink, "");
+        writer.setStaticAllocation(statics);
+        writer.setOptimizationPlan(plan);
+
+        try {
+            Batch batch = parsedBatches.take();
+            while (batch != END_BATCH) {
+                sink.chunk = emptyChunks.take();
+                writer.setFileName(batch.fileName);
+                for (int i = 0; i < batch.size; i++) {
+                    VMTranslator.writeCommand(writer, batch.commandTypes[i], batch.arg1s[i], batch.arg2s[i]);
+                }
+                writer.flush();
+
+                fullChunks.put(sink.chunk);
+                batch.size = 0;
+                emptyBatches.put(batch);
+                batch = parsedBatches.take();
+            }
+
+            // writes infinite loop to prevent noOp
+            sink.chunk = emptyChunks.take();
+            writer.writeEndLoop();
+            writer.writeSharedRoutines();
+            writer.flush();
+            fullChunks.put(sink.chunk);
+        } catch (InterruptedException e) {
+            // stopped by another stage, which already knows why.
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+            parsing.interrupt();
+        }
+
+        try {
+            fullChunks.put(END_CHUNK);
+        } catch (InterruptedException e) {
+            // stopped by the writer, nothing left to pass on.
+        }
+    }
+
+    // Stops the other stages after the writer failed.
+    private void stop() {
+        parsing.interrupt();
+        generating.interrupt();
+    }
+
+    // A batch of parsed commands, kept as arrays so a batch can be reused without new objects.
+    private static class Batch {
+        private String fileName;
+        private CommandType[] commandTypes = new CommandType[BATCH_SIZE];
+        private String[] arg1s = new String[BATCH_SIZE];
+        private int[] arg2s = new int[BATCH_SIZE];
+        private int size;
+
+        private void add(CommandType commandType, String arg1, int arg2) {
+            commandTypes[size] = commandType;
+            arg1s[size] = arg1;
+            arg2s[size] = arg2;
+            size++;
+        }
+    }
+
+    // Passes everything the CodeWriter writes into the current chunk.
+    private static class ChunkStream extends OutputStream {
+        private ByteArrayOutputStream chunk;
+
+        @Override
+        public void write(int b) {
+            chunk.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            chunk.write(b, off, len);
+        }
+    }
+}
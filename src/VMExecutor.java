@@ -0,0 +1,430 @@
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs VM commands directly, as the reference the translated ASM code is checked against.
+ *
+ * The RAM is laid out the way the translation lays it out, SP, LCL, ARG, THIS and THAT in RAM[0] - RAM[4],
+ * temp in RAM[5] - RAM[12], the stack from RAM[256], so the two can be compared word for word.
+ * Static variables are kept apart, since each translation places them differently.
+ * Like the translation, the program starts at its first command, and halts at a "label L, goto L" loop or
+ * when it runs off its end. gt and lt compare x and y as signed 16-bit values, even when x - y would overflow.
+ *
+ * Anything a correct VM program can't do throws IllegalStateException, so a generated or shrunk program
+ * that isn't a valid test is told apart from one the translation gets wrong:
+ * popping below the function's locals, a local or argument past the function's count, this, that or the stack
+ * leaving their part of RAM, an unknown label or function, falling into a function, or not halting.
+ *
+ * @author Mark Alan Vincent II
+ * @version 2.0
+ */
+public class VMExecutor {
+
+    // Where the stack and heap are in RAM.
+    public static final int STACK = 256;
+    public static final int HEAP = 2048;
+    public static final int HEAP_END = 16384;
+    private static final int TEMP = 5;
+    private static final int TEMP_SIZE = 8;
+    private static final int STATIC_SIZE = StaticAllocation.LAST_ADDRESS - StaticAllocation.FIRST_ADDRESS + 1;
+
+    // private variables and objects
+    // the commands of every VM file, one after another.
+    private List<CommandType> types;
+    private List<String> args1;
+    private List<Integer> args2;
+    private List<String> fileNames;
+    private List<String> functionOf;
+    private List<Integer> callOrdinals;
+    private HashMap<String, Integer> functions;
+    private HashMap<String, Integer> labels;
+    private short[] ram;
+    private LinkedHashMap<String, int[]> statics;
+    private List<Frame> frames;
+    private int pc;
+    private long steps;
+    private LinkedHashMap<String, Long> profile;
+
+    /**
+     * Used for creating a new VMExecutor type object, with RAM cleared.
+     *
+     * pre: pass the VM files of one program, in the order they are placed in the ASM file.
+     * post: ready to run from the first command, as the function the first file starts with.
+     *
+     * @param fileNames the names of the VM files, as given to CodeWriter.setFileName.
+     * @param sources the contents of each VM file.
+     * @throws IllegalStateException if a label or function is defined twice.
+     */
+    public VMExecutor(List<String> fileNames, List<byte[]> sources) {
+        this.types = new ArrayList<>();
+        this.args1 = new ArrayList<>();
+        this.args2 = new ArrayList<>();
+        this.fileNames = new ArrayList<>();
+        this.functionOf = new ArrayList<>();
+        this.callOrdinals = new ArrayList<>();
+        this.functions = new HashMap<>();
+        this.labels = new HashMap<>();
+        this.ram = new short[HackSimulator.RAM_SIZE];
+        this.statics = new LinkedHashMap<>();
+        this.frames = new ArrayList<>();
+        this.profile = new LinkedHashMap<>();
+
+        // reads every command, and where each function and label is.
+        for (int i = 0; i < fileNames.size(); i++) {
+            Parser parser = new Parser(new ByteArrayInputStream(sources.get(i)), fileNames.get(i) + ".vm");
+            statics.put(fileNames.get(i), new int[STATIC_SIZE]);
+            String function = null;
+            int calls = 0;
+
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                if (parser.getCommandType() == null) {
+                    continue;
+                }
+
+                if (parser.getCommandType() == CommandType.C_FUNCTION) {
+                    function = parser.getArg1();
+                    calls = 0;
+                    define(functions, function, types.size());
+                } else if (parser.getCommandType() == CommandType.C_LABEL) {
+                    define(labels, function + " " + parser.getArg1(), types.size());
+                }
+
+                types.add(parser.getCommandType());
+                args1.add(parser.getArg1());
+                args2.add(parser.getArg2());
+                this.fileNames.add(fileNames.get(i));
+                functionOf.add(function);
+                callOrdinals.add(parser.getCommandType() == CommandType.C_CALL ? calls++ : -1);
+            }
+        }
+    }
+
+    /**
+     * Runs the program until it halts.
+     *
+     * pre: RAM is set up, SP and LCL at the start of the stack.
+     * post: RAM and static variables are left as the program left them.
+     *
+     * @param maxSteps the most commands to run.
+     * @throws IllegalStateException if the program isn't a valid test, or doesn't halt within maxSteps.
+     */
+    public void run(long maxSteps) {
+        // commands before any function may use the whole stack, and any local or argument.
+        if (frames.isEmpty()) {
+            frames.add(new Frame(Integer.MAX_VALUE, Integer.MAX_VALUE, ram[0]));
+        }
+
+        while (pc < types.size()) {
+            if (steps++ == maxSteps) {
+                throw new IllegalStateException("Program didn't halt within " + maxSteps + " commands.");
+            }
+            String arg1 = args1.get(pc);
+            int arg2 = args2.get(pc);
+
+            switch (types.get(pc)) {
+                case C_PUSH:
+                    push(read(arg1, arg2));
+                    pc++;
+                    break;
+                case C_POP:
+                    write(arg1, arg2, pop());
+                    pc++;
+                    break;
+                case C_ARITHMETIC:
+                    arithmetic(arg1);
+                    pc++;
+                    break;
+                case C_LABEL:
+                    count("block " + functionOf.get(pc) + " " + arg1);
+                    pc++;
+                    break;
+                case C_GOTO:
+                    int target = label(arg1);
+                    if (target == pc - 1) {
+                        // "label L, goto L" halts.
+                        return;
+                    }
+                    pc = target;
+                    break;
+                case C_IF:
+                    pc = pop() != 0 ? label(arg1) : pc + 1;
+                    break;
+                case C_FUNCTION:
+                    // the first function is entered without a call, with no arguments.
+                    if (pc != 0) {
+                        throw new IllegalStateException("Ran into function " + arg1 + " without calling it.");
+                    }
+                    enter(arg1, 0, arg2);
+                    pc++;
+                    break;
+                case C_CALL:
+                    call(arg1, arg2);
+                    break;
+                case C_RETURN:
+                    doReturn();
+                    break;
+                default:
+                    pc++;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sets a word of RAM, ex: the stack and segment pointers before running.
+     * @param address the address, from 0 to 32767.
+     * @param value the value, kept to 16 bits.
+     */
+    public void poke(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    /**
+     * Gets a word of RAM.
+     * @param address the address, from 0 to 32767.
+     * @return the value, from -32768 to 32767.
+     */
+    public int peek(int address) {
+        return ram[address];
+    }
+
+    /**
+     * Gets the static variables of every VM file.
+     * @return fileName -> value of each index, with every index a program could use.
+     */
+    public Map<String, int[]> getStatics() {
+        return statics;
+    }
+
+    /**
+     * pre: none.
+     * post: returns how many commands have run.
+     * @return the steps variable.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Writes the counts of the run as an execution profile, see ExecutionProfile.
+     * @return the profile text.
+     */
+    public String profile() {
+        StringWriter text = new StringWriter();
+        PrintWriter output = new PrintWriter(text);
+        output.println("// recorded by VMExecutor in " + steps + " commands");
+        for (Map.Entry<String, Long> entry : profile.entrySet()) {
+            output.println(entry.getKey() + " " + entry.getValue());
+        }
+        output.flush();
+        return text.toString();
+    }
+
+    // Calls a function, saving the frame the same way the translation does.
+    private void call(String function, int numArgs) {
+        Integer target = functions.get(function);
+        if (target == null) {
+            throw new IllegalStateException("Unknown function " + function + ".");
+        }
+        count("call " + functionOf.get(pc) + " " + callOrdinals.get(pc));
+        if (numArgs > ram[0] - frame().base) {
+            throw new IllegalStateException("Not enough arguments on the stack to call " + function + ".");
+        }
+
+        // the return address is the command after the call.
+        push(pc + 1);
+        push(ram[1]);
+        push(ram[2]);
+        push(ram[3]);
+        push(ram[4]);
+        ram[2] = (short) (ram[0] - 5 - numArgs);
+        ram[1] = ram[0];
+
+        frames.add(null);
+        enter(function, numArgs, args2.get(target));
+        pc = target + 1;
+    }
+
+    // Starts running a function, LCL already points past its frame.
+    private void enter(String function, int numArgs, int numVars) {
+        for (int i = 0; i < numVars; i++) {
+            push(0);
+        }
+        frames.set(frames.size() - 1, new Frame(numArgs, numVars, ram[1] + numVars));
+        count("function " + function);
+    }
+
+    // Returns from a function, as the translation does.
+    private void doReturn() {
+        if (frames.size() == 1) {
+            throw new IllegalStateException("Returned from the first function, which wasn't called.");
+        }
+        int frame = ram[1];
+        int returnAddress = ram[frame - 5];
+        ram[ram[2]] = (short) pop();
+        ram[0] = (short) (ram[2] + 1);
+        ram[4] = ram[frame - 1];
+        ram[3] = ram[frame - 2];
+        ram[2] = ram[frame - 3];
+        ram[1] = ram[frame - 4];
+        frames.remove(frames.size() - 1);
+        pc = returnAddress;
+    }
+
+    // Runs an arithmetic or logical command.
+    private void arithmetic(String command) {
+        if (command.equals("neg") || command.equals("not")) {
+            int x = pop();
+            push(command.equals("neg") ? -x : ~x);
+            return;
+        }
+
+        int y = pop();
+        int x = pop();
+        switch (command) {
+            case "add":
+                push(x + y);
+                break;
+            case "sub":
+                push(x - y);
+                break;
+            case "and":
+                push(x & y);
+                break;
+            case "or":
+                push(x | y);
+                break;
+            case "eq":
+                push(x == y ? -1 : 0);
+                break;
+            case "gt":
+                push(x > y ? -1 : 0);
+                break;
+            case "lt":
+                push(x < y ? -1 : 0);
+                break;
+            default:
+                throw new IllegalStateException("Unknown command " + command + ".");
+        }
+    }
+
+    // Reads a word of a segment.
+    private int read(String segment, int index) {
+        if (segment.equals("constant")) {
+            return index;
+        } else if (segment.equals("static")) {
+            return statics.get(fileNames.get(pc))[staticIndex(index)];
+        }
+        return ram[address(segment, index)];
+    }
+
+    // Writes a word of a segment.
+    private void write(String segment, int index, int value) {
+        if (segment.equals("static")) {
+            statics.get(fileNames.get(pc))[staticIndex(index)] = value;
+        } else if (segment.equals("constant")) {
+            throw new IllegalStateException("Can't pop constant.");
+        } else {
+            ram[address(segment, index)] = (short) value;
+        }
+    }
+
+    // Finds the address of a word of a segment, checking it is inside the segment.
+    private int address(String segment, int index) {
+        Frame frame = frame();
+        switch (segment) {
+            case "local":
+                check(index < frame.numVars, "local " + index);
+                return ram[1] + index;
+            case "argument":
+                check(index < frame.numArgs, "argument " + index);
+                return ram[2] + index;
+            case "this":
+                return heap(ram[3] + index);
+            case "that":
+                return heap(ram[4] + index);
+            case "pointer":
+                check(index < 2, "pointer " + index);
+                return 3 + index;
+            case "temp":
+                check(index < TEMP_SIZE, "temp " + index);
+                return TEMP + index;
+            default:
+                throw new IllegalStateException("Unknown segment " + segment + ".");
+        }
+    }
+
+    private int staticIndex(int index) {
+        check(index < STATIC_SIZE, "static " + index);
+        return index;
+    }
+
+    private int heap(int address) {
+        check(address >= HEAP && address < HEAP_END, "heap address " + address);
+        return address;
+    }
+
+    private void check(boolean valid, String what) {
+        if (!valid) {
+            throw new IllegalStateException("Bad " + what + " in " + functionOf.get(pc) + ".");
+        }
+    }
+
+    private void push(int value) {
+        if (ram[0] >= HEAP) {
+            throw new IllegalStateException("Stack overflow in " + functionOf.get(pc) + ".");
+        }
+        ram[ram[0]] = (short) value;
+        ram[0]++;
+    }
+
+    private int pop() {
+        if (ram[0] <= frame().base) {
+            throw new IllegalStateException("Stack underflow in " + functionOf.get(pc) + ".");
+        }
+        ram[0]--;
+        return ram[ram[0]];
+    }
+
+    private int label(String label) {
+        Integer target = labels.get(functionOf.get(pc) + " " + label);
+        if (target == null) {
+            throw new IllegalStateException("Unknown label " + label + " in " + functionOf.get(pc) + ".");
+        }
+        return target;
+    }
+
+    private Frame frame() {
+        return frames.get(frames.size() - 1);
+    }
+
+    private void count(String key) {
+        profile.merge(key, 1L, Long::sum);
+    }
+
+    private static void define(HashMap<String, Integer> names, String name, int index) {
+        if (names.put(name, index) != null) {
+            throw new IllegalStateException(name + " is defined twice.");
+        }
+    }
+
+    // The sizes of the function being run, and where its working stack starts.
+    private static class Frame {
+        private final int numArgs;
+        private final int numVars;
+        private final int base;
+
+        private Frame(int numArgs, int numVars, int base) {
+            this.numArgs = numArgs;
+            this.numVars = numVars;
+            this.base = base;
+        }
+    }
+}
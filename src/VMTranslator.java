@@ -1,3 +1,12 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -10,12 +19,32 @@ import java.util.Scanner;
  */
 public class VMTranslator {
 
+    // Translator options that change the ASM code, part of every cache key.
+    private static final String OPTIONS = "functions=global";
+
+    // Default cache size, 64 MB.
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
     // private objects used in main.
     private static CodeWriter writer;
-    private static Parser parser;
     private static Scanner keyboard;
 
-    // Projects main method.
+    /*
+    Projects main method.
+
+    Usage: VMTranslator [--static-alloc] [--profile file [--rom-budget n]] [--cleanup] [--cache dir] [--cache-size bytes]
+                        [--cache-verify] [--out file.asm] [file.vm ...]
+           VMTranslator --pipeline [--static-alloc] [--profile file [--rom-budget n]] [--out file.asm] [file.vm ...]
+           VMTranslator --daemon [--port n] [--cache dir] [--cache-size bytes]
+    With no VM files given, translates Sys.vm into NestedCall.asm.
+    Every VM file is placed in the same ASM file, with its static variables named after the VM file.
+    With --static-alloc, the VM files are the whole program and static variables get fixed addresses, see StaticAllocation.
+    With --profile, the VM files are the whole program and the execution counts in the file decide which calls,
+    returns and comparisons are inline, within --rom-budget instructions (32768 by default), see OptimizationPlan.
+    With --cleanup, the jumps of the whole translated program are cleaned up before writing, see ControlFlowCleanup.
+    With --pipeline, reads, translates and writes on separate threads, see TranslationPipeline.
+    With --daemon, stays running and translates the requests of TranslationClient, see TranslationDaemon.
+     */
     public static void main(String[] args) {
 
         // welcome message
@@ -24,12 +53,206 @@ public class VMTranslator {
         // Loads in the files to each dedicated object tool.
         keyboard = new Scanner(System.in);
         // String fileRead  = takeInput(keyboard);
-        String fileRead = "Sys.vm";
-        String fileWrite = "NestedCall.asm";
-        // String fileWrite = fileRead.substring(0, fileRead.indexOf('.')) + ".asm";
+        List<String> filesRead = new ArrayList<>();
+        String fileWrite = null;
+        TranslationCache cache = null;
+        File cacheDirectory = null;
+        long cacheBytes = DEFAULT_CACHE_BYTES;
+        boolean verifyCache = false;
+        boolean daemon = false;
+        boolean pipeline = false;
+        boolean cleanup = false;
+        boolean allocateStatics = false;
+        StaticAllocation statics = null;
+        String profileRead = null;
+        int romBudget = OptimizationPlan.ROM_SIZE;
+        OptimizationPlan plan = null;
+        int port = TranslationDaemon.DEFAULT_PORT;
+
+        // reads the command line options.
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cache":
+                    cacheDirectory = new File(args[++i]);
+                    break;
+                case "--cache-size":
+                    cacheBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--cache-verify":
+                    verifyCache = true;
+                    break;
+                case "--out":
+                    fileWrite = args[++i];
+                    break;
+                case "--static-alloc":
+                    allocateStatics = true;
+                    break;
+                case "--profile":
+                    profileRead = args[++i];
+                    break;
+                case "--rom-budget":
+                    romBudget = Integer.parseInt(args[++i]);
+                    break;
+                case "--cleanup":
+                    cleanup = true;
+                    break;
+                case "--pipeline":
+                    pipeline = true;
+                    break;
+                case "--daemon":
+                    daemon = true;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    filesRead.add(args[i]);
+                    break;
+            }
+        }
+
+        if (cacheDirectory != null) {
+            cache = new TranslationCache(cacheDirectory, cacheBytes);
+            if (verifyCache) {
+                System.out.println("Removed " + cache.verify() + " invalid cache entries.");
+            }
+        }
+
+        if (daemon) {
+            new TranslationDaemon(port, cache).serve();
+            return;
+        }
 
-        parser = new Parser(fileRead);
-        writer = new CodeWriter(fileWrite);
+        if (filesRead.isEmpty()) {
+            filesRead.add("Sys.vm");
+            if (fileWrite == null) {
+                fileWrite = "NestedCall.asm";
+            }
+        }
+        if (fileWrite == null) {
+            fileWrite = outputName(filesRead);
+        }
+
+        if (allocateStatics) {
+            try {
+                statics = StaticAllocation.allocate(filesRead);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                System.out.println(e.getMessage() + " Exiting program.");
+                System.exit(0);
+            }
+            System.out.println(statics.report());
+        }
+
+        if (profileRead != null) {
+            try {
+                plan = OptimizationPlan.plan(filesRead, ExecutionProfile.load(profileRead), romBudget);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                System.out.println(e.getMessage() + " Exiting program.");
+                System.exit(0);
+            }
+            System.out.println(plan.report());
+        }
+
+        if (pipeline) {
+            // the pipeline translates file by file in its own threads, a cache can't be spliced in.
+            if (cache != null) {
+                System.out.println("--pipeline can't be used with --cache. Exiting program.");
+                System.exit(0);
+            }
+            // the pipeline never holds the whole program, which the cleanup needs.
+            if (cleanup) {
+                System.out.println("--pipeline can't be used with --cleanup. Exiting program.");
+                System.exit(0);
+            }
+
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(locate(fileWrite)))) {
+                TranslationPipeline.translate(filesRead, output, statics, plan);
+            } catch (IOException e) {
+                System.out.println("Unable to translate into " + fileWrite + ": " + e.getMessage() + " Exiting program.");
+                System.exit(0);
+            }
+            return;
+        }
+
+        // the cleanup needs the whole program, so it is translated into memory first.
+        ByteArrayOutputStream program = new ByteArrayOutputStream();
+        writer = cleanup ? new CodeWriter(program, "") : new CodeWriter(fileWrite);
+        writer.setStaticAllocation(statics);
+        writer.setOptimizationPlan(plan);
+        try {
+            translateFiles(filesRead, writer, cache);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.out.println(e.getMessage() + " Exiting program.");
+            writer.close();
+            System.exit(0);
+        }
+
+        // closes the writer
+        writer.close();
+
+        if (cleanup) {
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(locate(fileWrite)))) {
+                System.out.println(ControlFlowCleanup.clean(program.toByteArray(), output));
+            } catch (IOException e) {
+                System.out.println("I was unable to create " + fileWrite + ", exiting program.");
+                System.exit(0);
+            }
+        }
+
+        if (cache != null) {
+            System.out.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses.");
+        }
+
+        // END OF MAIN METHOD
+    }
+
+    /**
+     * Translates a whole program, one or more VM files placed in the same ASM file.
+     *
+     * pre: every VM file can be found, writer is at the start of the ASM file, with its static allocation and
+     *      optimization plan set.
+     * post: writes the ASM code of every VM file followed by the ending loop and shared subroutines,
+     *       does not close the writer.
+     *
+     * @param filesRead the VM files, in the order they are placed in the ASM file.
+     * @param writer the writer of the ASM file.
+     * @param cache the cache of translated VM files, or null to translate every file.
+     */
+    public static void translateFiles(List<String> filesRead, CodeWriter writer, TranslationCache cache) {
+        for (String fileRead : filesRead) {
+            // static variables of each VM file are kept apart by their file name.
+            writer.setFileName(baseName(fileRead));
+
+            if (cache != null) {
+                String options = OPTIONS;
+                if (writer.getStaticAllocation() != null) {
+                    options += ";statics=" + writer.getStaticAllocation().describe(baseName(fileRead));
+                }
+                if (writer.getOptimizationPlan() != null) {
+                    options += ";plan=" + writer.getOptimizationPlan().describe(baseName(fileRead));
+                }
+                cache.translate(readFile(fileRead), options, writer);
+            } else {
+                translate(new Parser(fileRead), writer);
+            }
+        }
+
+        // writes infinite loop to prevent noOp
+        writer.writeEndLoop();
+        writer.writeSharedRoutines();
+    }
+
+    /**
+     * Translates every command of a VM file.
+     *
+     * pre: parser is at the start of a VM file, writer is set up for the same VM file.
+     * post: writes the ASM code of each command in the VM file, does not close the writer.
+     *
+     * @param parser the parser of the VM file.
+     * @param writer the writer of the ASM file.
+     * @throws IllegalArgumentException if a line can't be translated, the message tells the file and line.
+     */
+    public static void translate(Parser parser, CodeWriter writer) {
 
         // begins loop through VM file.
         while (parser.hasMoreCommands()) {
@@ -44,62 +267,74 @@ public class VMTranslator {
                 continue;
             }
 
-            /*
-            selects type of writing method based on parser's commandType
-
-            * Uses both arg1 and arg2
-            Memory Access Commands - push, pop
+            try {
+                writeCommand(writer, parser.getCommandType(), parser.getArg1(), parser.getArg2());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(parser.getLocation() + ": " + e.getMessage(), e);
+            }
+        }
 
-            * Uses arg1, arg2 is -1 (considered null)
-            Arithmetic and Logical Commands - add, sub, neg, eg, gt, lt, and, or, not
+    }
 
-            * Uses arg1, arg2 is -1 (considered null)
-            Program Flow Commands - label, goto, if-goto
+    /**
+     * Writes the ASM code of a single VM command.
+     *
+     * pre: the command is not null, as given by Parser.
+     * post: writes the ASM code of the command with writer.
+     *
+     * @param writer the writer of the ASM file.
+     * @param commandType the type of the command.
+     * @param arg1 the first argument of the command.
+     * @param arg2 the second argument of the command.
+     */
+    public static void writeCommand(CodeWriter writer, CommandType commandType, String arg1, int arg2) {
+        /*
+        selects type of writing method based on parser's commandType
 
-            * Uses arg1, arg2 (return does not use arg1 or arg2)
-            Function calling Commands - function, call, return
-            */
-            switch (parser.getCommandType()) {
-                case C_PUSH:
-                    writer.writePushPop(parser.getCommandType(), parser.getArg1(), parser.getArg2());
-                    break;
-                case C_POP:
-                    writer.writePushPop(parser.getCommandType(), parser.getArg1(), parser.getArg2());
-                    break;
-                case C_ARITHMETIC:
-                    writer.writeArithmetic(parser.getArg1());
-                    break;
-                case C_LABEL:
-                    writer.writeLabel(parser.getArg1());
-                    break;
-                case C_GOTO:
-                    writer.writeGoTo(parser.getArg1());
-                    break;
-                case C_IF:
-                    writer.writeIf(parser.getArg1());
-                    break;
-                case C_FUNCTION:
-                    writer.writeFunction(parser.getArg1(), parser.getArg2());
-                    break;
-                case C_CALL:
-                    writer.writeCall(parser.getArg1(), parser.getArg2());
-                    break;
-                case C_RETURN:
-                    writer.writeReturn();
-                    break;
-                default:
-                    // ignore case, doesn't write.
-                    break;
-            }
-        }
+        * Uses both arg1 and arg2
+        Memory Access Commands - push, pop
 
-        // writes infinite loop to prevent noOp
-        writer.writeEndLoop();
+        * Uses arg1, arg2 is -1 (considered null)
+        Arithmetic and Logical Commands - add, sub, neg, eg, gt, lt, and, or, not
 
-        // closes the writer
-        writer.close();
+        * Uses arg1, arg2 is -1 (considered null)
+        Program Flow Commands - label, goto, if-goto
 
-        // END OF MAIN METHOD
+        * Uses arg1, arg2 (return does not use arg1 or arg2)
+        Function calling Commands - function, call, return
+        */
+        switch (commandType) {
+            case C_PUSH:
+                writer.writePushPop(commandType, arg1, arg2);
+                break;
+            case C_POP:
+                writer.writePushPop(commandType, arg1, arg2);
+                break;
+            case C_ARITHMETIC:
+                writer.writeArithmetic(arg1);
+                break;
+            case C_LABEL:
+                writer.writeLabel(arg1);
+                break;
+            case C_GOTO:
+                writer.writeGoTo(arg1);
+                break;
+            case C_IF:
+                writer.writeIf(arg1);
+                break;
+            case C_FUNCTION:
+                writer.writeFunction(arg1, arg2);
+                break;
+            case C_CALL:
+                writer.writeCall(arg1, arg2);
+                break;
+            case C_RETURN:
+                writer.writeReturn();
+                break;
+            default:
+                // ignore case, doesn't write.
+                break;
+        }
     }
 
     // Method to get input from user.
@@ -107,5 +342,45 @@ public class VMTranslator {
         return keyboard.nextLine();
     }
 
+    /**
+     * Gets a VM file's name without its folder or extension, ex: "dir/Sys.vm" -> "Sys".
+     * @param fileName the name of the VM file.
+     * @return the name used for the static variables of the VM file.
+     */
+    public static String baseName(String fileName) {
+        String name = new File(fileName).getName();
+        return name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+
+    /**
+     * Works out the default ASM file name of a program, ex: ["dir/Main.vm", "Sys.vm"] -> "Main.asm".
+     * @param filesRead the VM files of the program.
+     * @return the name of the ASM file.
+     */
+    public static String outputName(List<String> filesRead) {
+        return baseName(filesRead.get(0)) + ".asm";
+    }
+
+    /**
+     * Finds a VM or ASM file the way Parser and CodeWriter do, inside of the src folder unless the path is absolute.
+     * @param fileName the name of the file.
+     * @return the file.
+     */
+    public static File locate(String fileName) {
+        File file = new File(fileName);
+        return file.isAbsolute() ? file : new File("src/" + fileName);
+    }
+
+    // Method for reading a whole VM file, found the same way Parser finds it.
+    private static byte[] readFile(String fileName) {
+        try {
+            return Files.readAllBytes(locate(fileName).toPath());
+        } catch (IOException e) {
+            System.out.println("Unable to locate file for translation. Exiting program.");
+            System.exit(0);
+            return null;
+        }
+    }
+
     // END OF CLASS VMTranslator
 }